@@ -11,6 +11,7 @@ version = gitTagName?.run { getVersionName(this) } ?: debugVersion
 plugins {
     id("java")
     id("com.github.johnrengelman.shadow") version "7.1.2"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 repositories {
@@ -27,6 +28,24 @@ dependencies {
     implementation("org.yaml:snakeyaml:2.0")
     implementation("commons-codec:commons-codec:1.18.0")
 
+    testImplementation(platform("org.junit:junit-bom:5.10.2"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+}
+
+// 单元测试，使用 gradlew test 运行
+tasks.test {
+    useJUnitPlatform()
+}
+
+// 性能测试，使用 gradlew jmh 运行，结果会以 json 格式输出到 build/results/jmh/results.json
+// 只运行部分测试时可以加上 -Pjmh.includes=HashBenchmark 这样的参数
+jmh {
+    jmhVersion = "1.37"
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+
+    (findProperty("jmh.includes") as String?)?.let { includes = listOf(it) }
 }
 
 tasks.withType<ShadowJar> {
@@ -0,0 +1,111 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.PathTable;
+import com.github.balloonupdate.mcpatch.client.data.TempVersionMeta;
+import com.github.balloonupdate.mcpatch.client.data.VersionMeta;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 性能测试用的合成数据
+ */
+public class BenchmarkData {
+    /**
+     * 在临时目录里创建一个指定大小的随机内容文件
+     */
+    public static Path randomFile(long size) throws IOException {
+        Path file = Files.createTempFile("mcpatch-bench", ".bin");
+
+        Random random = new Random(size);
+        byte[] buf = new byte[1024 * 1024];
+
+        try (OutputStream output = Files.newOutputStream(file)) {
+            long remains = size;
+
+            while (remains > 0) {
+                int len = (int) Math.min(buf.length, remains);
+
+                random.nextBytes(buf);
+                output.write(buf, 0, len);
+
+                remains -= len;
+            }
+        }
+
+        return file;
+    }
+
+    /**
+     * 生成一个版本的元数据 json，文件变动的种类和比例大致模仿真实的更新包
+     *
+     * @param version 版本的序号，用来生成不会互相冲突的路径
+     * @param changes 文件变动的数量
+     * @param pathPool 更新和删除的文件会从这么多个路径里面随机挑选，用来模拟同一个文件在多个版本里反复被修改
+     */
+    public static JSONObject versionMeta(int version, int changes, int pathPool) {
+        Random random = new Random(version);
+        JSONArray array = new JSONArray();
+
+        for (int i = 0; i < changes; i++) {
+            int kind = random.nextInt(100);
+            JSONObject change = new JSONObject();
+
+            if (kind < 70) {
+                change.put("operation", "update-file");
+                change.put("path", "mods/file" + random.nextInt(pathPool) + ".jar");
+                change.put("hash", String.format("%016x_%04x", random.nextLong(), random.nextInt(0x10000)));
+                change.put("len", random.nextInt(1024 * 1024));
+                change.put("modified", 1700000000L + version);
+                change.put("offset", (long) i * 1024 * 1024);
+            } else if (kind < 80) {
+                change.put("operation", "delete-file");
+                change.put("path", "mods/file" + random.nextInt(pathPool) + ".jar");
+            } else if (kind < 90) {
+                change.put("operation", "create-directory");
+                change.put("path", "config/v" + version + "/d" + i);
+            } else if (kind < 95) {
+                change.put("operation", "delete-directory");
+                change.put("path", "old/v" + version + "/d" + i);
+            } else {
+                change.put("operation", "move-file");
+                change.put("from", "moved/v" + version + "/a" + i);
+                change.put("to", "moved/v" + version + "/b" + i);
+            }
+
+            array.put(change);
+        }
+
+        JSONObject meta = new JSONObject();
+
+        meta.put("label", "1." + version);
+        meta.put("logs", "changes of version " + version);
+        meta.put("changes", array);
+
+        return meta;
+    }
+
+    /**
+     * 生成多个连续版本的元数据
+     */
+    public static List<TempVersionMeta> versionMetas(int versions, int changesPerVersion) {
+        List<TempVersionMeta> result = new ArrayList<>();
+        int pathPool = Math.max(versions * changesPerVersion / 5, 1);
+        PathTable paths = new PathTable();
+
+        for (int v = 0; v < versions; v++) {
+            VersionMeta meta = new VersionMeta(versionMeta(v, changesPerVersion, pathPool), paths);
+
+            result.add(new TempVersionMeta("1." + v + ".tar", meta));
+        }
+
+        return result;
+    }
+}
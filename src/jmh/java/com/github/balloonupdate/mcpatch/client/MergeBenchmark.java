@@ -0,0 +1,63 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.TempMoveFile;
+import com.github.balloonupdate.mcpatch.client.data.TempUpdateFile;
+import com.github.balloonupdate.mcpatch.client.data.TempVersionMeta;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并多个版本的文件变动的性能测试
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class MergeBenchmark {
+    /**
+     * 落后了多少个版本
+     */
+    @Param({"10", "100", "1000"})
+    public int versions;
+
+    /**
+     * 每个版本有多少个文件变动，1000 个版本 * 100 个变动可以模拟十万级别的大型更新包
+     */
+    @Param({"100"})
+    public int changesPerVersion;
+
+    /**
+     * 合并时使用的线程数，1 代表按版本顺序逐个合并
+     */
+    @Param({"1", "4"})
+    public int threads;
+
+    List<TempVersionMeta> metas;
+
+    Path tempDir = Paths.get(".mcpatch-temp");
+
+    @Setup
+    public void setup() {
+        metas = BenchmarkData.versionMetas(versions, changesPerVersion);
+    }
+
+    @Benchmark
+    public int collectChanges() {
+        ArrayList<String> createFolders = new ArrayList<>();
+        ArrayList<TempUpdateFile> updateFiles = new ArrayList<>();
+        ArrayList<String> deleteFolders = new ArrayList<>();
+        ArrayList<String> deleteFiles = new ArrayList<>();
+        ArrayList<TempMoveFile> moveFiles = new ArrayList<>();
+
+        Work.collectChanges(metas, tempDir, threads, createFolders, updateFiles, deleteFolders, deleteFiles, moveFiles);
+
+        return updateFiles.size();
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.balloonupdate.mcpatch.client.data;
+
+import com.github.balloonupdate.mcpatch.client.BenchmarkData;
+import com.github.balloonupdate.mcpatch.client.exceptions.McpatchBusinessException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解析版本元数据的性能测试
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class VersionMetaBenchmark {
+    /**
+     * 单个版本里有多少个文件变动
+     */
+    @Param({"1000", "100000"})
+    public int changes;
+
+    String text;
+
+    /**
+     * 下载下来的原始元数据，是一个只有一个版本的 json 数组
+     */
+    byte[] bytes;
+
+    @Setup
+    public void setup() {
+        text = BenchmarkData.versionMeta(0, changes, changes / 5 + 1).toString();
+        bytes = ("[" + text + "]").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public VersionMeta parse() {
+        return new VersionMeta(new JSONObject(text));
+    }
+
+    /**
+     * 模拟边下载边解析，每次写入 64kb
+     */
+    @Benchmark
+    public List<VersionMeta> streamParse() throws McpatchBusinessException {
+        VersionMetaParser parser = new VersionMetaParser(label -> true, new PathTable());
+
+        for (int i = 0; i < bytes.length; i += 64 * 1024)
+            parser.write(bytes, i, Math.min(64 * 1024, bytes.length - i));
+
+        return parser.finish();
+    }
+}
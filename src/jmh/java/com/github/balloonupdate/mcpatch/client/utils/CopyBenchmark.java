@@ -0,0 +1,72 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import com.github.balloonupdate.mcpatch.client.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下载文件时的复制循环的性能测试，和各个协议里的 downloadStream 一样，从 BufferPool 借用缓冲区，边写入边计算校验值
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CopyBenchmark {
+    /**
+     * 文件大小，单位 MB
+     */
+    @Param({"1", "64", "1024"})
+    public int sizeMb;
+
+    Path source;
+
+    Path target;
+
+    FileHasher hasher;
+
+    @Setup
+    public void setup() throws IOException {
+        source = BenchmarkData.randomFile(sizeMb * 1024L * 1024L);
+        target = Files.createTempFile("mcpatch-bench", ".temp");
+        hasher = new FileHasher();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public String copy() throws IOException {
+        hasher.reset();
+
+        ByteBuffer pooled = BufferPool.acquireHeap();
+
+        try (InputStream input = Files.newInputStream(source); OutputStream output = Files.newOutputStream(target)) {
+            byte[] buffer = pooled.array();
+            ReduceReportingFrequency report = new ReduceReportingFrequency();
+
+            int len;
+
+            while ((len = input.read(buffer)) != -1) {
+                output.write(buffer, 0, len);
+                hasher.update(buffer, 0, len);
+                report.feed(len);
+            }
+        } finally {
+            BufferPool.release(pooled);
+        }
+
+        return hasher.getHash();
+    }
+}
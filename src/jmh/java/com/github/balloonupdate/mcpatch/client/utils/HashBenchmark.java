@@ -0,0 +1,106 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import com.github.balloonupdate.mcpatch.client.BenchmarkData;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 计算文件校验值的性能测试，对比几种不同的读取方式和校验算法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class HashBenchmark {
+    /**
+     * 文件大小，单位 MB
+     */
+    @Param({"1", "16", "256", "1024"})
+    public int sizeMb;
+
+    Path file;
+
+    FileHasher hasher;
+
+    FileHasher xxh3Hasher;
+
+    byte[] buf;
+
+    @Setup
+    public void setup() throws IOException {
+        file = BenchmarkData.randomFile(sizeMb * 1024L * 1024L);
+        hasher = new FileHasher();
+        xxh3Hasher = new FileHasher();
+        xxh3Hasher.setAlgorithm(new Xxh3Hash());
+        buf = new byte[BufferPool.bufferSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * 实际更新时使用的方式，会根据文件大小自动选择
+     */
+    @Benchmark
+    public String calculateHash() throws IOException {
+        return HashUtility.calculateHash(file);
+    }
+
+    /**
+     * 普通的输入流 + 堆内缓冲区
+     */
+    @Benchmark
+    public String stream() throws IOException {
+        hasher.reset();
+
+        try (InputStream stream = Files.newInputStream(file)) {
+            int read;
+
+            while ((read = stream.read(buf)) != -1)
+                hasher.update(buf, 0, read);
+        }
+
+        return hasher.getHash();
+    }
+
+    /**
+     * FileChannel + 堆外缓冲区
+     */
+    @Benchmark
+    public String channel() throws IOException {
+        hasher.reset();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            hasher.update(channel, 0, channel.size());
+        }
+
+        return hasher.getHash();
+    }
+
+    /**
+     * 拆分成多段，在多个线程上同时计算后再合并
+     */
+    @Benchmark
+    public String parallel() throws IOException {
+        return HashUtility.calculateHashParallel(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 使用 xxh3-128 算法，读取方式和 calculateHash 一样
+     */
+    @Benchmark
+    public String xxh3() throws IOException {
+        return xxh3Hasher.calculate(file);
+    }
+}
@@ -0,0 +1,358 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.ChangeList;
+import com.github.balloonupdate.mcpatch.client.data.TempMoveFile;
+import com.github.balloonupdate.mcpatch.client.data.TempUpdateFile;
+import com.github.balloonupdate.mcpatch.client.data.TempVersionMeta;
+import com.github.balloonupdate.mcpatch.client.utils.RuntimeAssert;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * 按版本顺序合并多个版本的文件变动，会尽可能剔除掉刚下载又马上要被删的文件<p>
+ * 合并规则和直接在几个 ArrayList 上做 contains、remove 完全一样，包括列表里元素的顺序和重复的元素，
+ * 只是每个列表额外按路径建立了索引，每个文件变动的处理时间不再随着已收集的数量增长<p>
+ * 合并过程中要下载的文件只记录来自哪个版本的哪个文件变动，最后留下来的文件才会创建 TempUpdateFile 对象
+ */
+public class ChangeSet {
+    /**
+     * 临时文件夹，用来计算临时文件的存放位置
+     */
+    Path tempDir;
+
+    /**
+     * 已经合并的版本，按添加顺序排列
+     */
+    List<TempVersionMeta> metas = new ArrayList<>();
+
+    /**
+     * 要创建的文件夹
+     */
+    IndexedList createFolders = new IndexedList();
+
+    /**
+     * 要下载的文件的当前路径。文件的其它信息不复制出来，通过编号找到来自第几个版本的第几个文件变动
+     */
+    IndexedList updateFiles = new IndexedList();
+
+    /**
+     * 要删除的文件夹
+     */
+    IndexedList deleteFolders = new IndexedList();
+
+    /**
+     * 要删除的文件
+     */
+    IndexedList deleteFiles = new IndexedList();
+
+    /**
+     * 要移动的文件
+     */
+    ArrayList<TempMoveFile> moveFiles = new ArrayList<>();
+
+    /**
+     * moveFiles 里每个元素来自哪个文件变动的编号
+     */
+    long[] moveSeqs = new long[16];
+
+    /**
+     * moveFiles 里所有的 from
+     */
+    HashSet<String> moveFroms = new HashSet<>();
+
+    /**
+     * moveFiles 里所有的 to
+     */
+    HashSet<String> moveTos = new HashSet<>();
+
+    public ChangeSet(Path tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * 文件变动的编号，高32位是第几个版本，低32位是这个版本的第几个文件变动，编号的大小顺序就是按版本顺序合并时的处理顺序
+     */
+    static long seq(int version, int row) {
+        return ((long) version << 32) | row;
+    }
+
+    /**
+     * 合并一个版本的所有文件变动，需要按从旧到新的顺序调用
+     */
+    public void add(TempVersionMeta meta) {
+        int version = metas.size();
+
+        metas.add(meta);
+
+        for (int i = 0; i < meta.metadata.changes.size(); i++)
+            apply(version, i);
+    }
+
+    /**
+     * 合并单个文件变动，需要按编号从小到大的顺序调用
+     *
+     * @param version 第几个版本，对应 metas 里的下标
+     * @param i 这个版本的第几个文件变动
+     */
+    void apply(int version, int i) {
+        ChangeList changes = metas.get(version).metadata.changes;
+        long seq = seq(version, i);
+
+        switch (changes.kind(i)) {
+            case ChangeList.CREATE_FOLDER: {
+                String path = changes.path(i);
+
+                RuntimeAssert.isTrue(!createFolders.contains(path));
+
+                // 先删除 deleteFolders 里的文件夹。没有的话，再加入 createFolders 里面
+                if (!deleteFolders.removeFirst(path))
+                    createFolders.add(path, seq);
+
+                break;
+            }
+
+            case ChangeList.UPDATE_FILE: {
+                String path = changes.path(i);
+
+                // 删除已有的东西，避免下面重复添加报错
+                updateFiles.removeAll(path);
+
+                // 将文件从删除列表里移除
+                deleteFiles.removeFirst(path);
+
+                // 收集起来
+                updateFiles.add(path, seq);
+                break;
+            }
+
+            case ChangeList.DELETE_FOLDER: {
+                String path = changes.path(i);
+
+                // 先删除 createFolders 里的文件夹。没有的话，再加入 deleteFolders 里面
+                if (!createFolders.removeFirst(path))
+                    deleteFolders.add(path, seq);
+
+                break;
+            }
+
+            case ChangeList.DELETE_FILE: {
+                String path = changes.path(i);
+
+                // 处理那些刚下载又马上要被删的文件，这些文件不用重复下载
+                updateFiles.removeAll(path);
+
+                deleteFiles.add(path, seq);
+                break;
+            }
+
+            case ChangeList.MOVE_FILE: {
+                String from = changes.path(i);
+                String to = changes.target(i);
+
+                // 单独处理还没有下载的文件
+                int slot = updateFiles.firstSlot(from);
+
+                if (slot >= 0) {
+                    // 不能和别人的to冲突了
+                    RuntimeAssert.isTrue(!moveTos.contains(to));
+
+                    // 更新下载路径
+                    updateFiles.rekey(slot, from, to);
+                } else {
+                    // 不能和别人的from或者to冲突了
+                    RuntimeAssert.isTrue(!moveFroms.contains(from) && !moveTos.contains(to));
+
+                    if (moveFiles.size() == moveSeqs.length)
+                        moveSeqs = Arrays.copyOf(moveSeqs, moveSeqs.length * 2);
+
+                    moveSeqs[moveFiles.size()] = seq;
+                    moveFiles.add(new TempMoveFile(from, to));
+                    moveFroms.add(from);
+                    moveTos.add(to);
+                }
+
+                break;
+            }
+
+            default:
+                break;
+        }
+    }
+
+    public ArrayList<String> getCreateFolders() {
+        return createFolders.toList();
+    }
+
+    /**
+     * 生成要下载的文件列表，只有最后留下来的文件才会创建 TempUpdateFile 对象
+     */
+    public ArrayList<TempUpdateFile> getUpdateFiles() {
+        ArrayList<TempUpdateFile> result = new ArrayList<>();
+
+        for (int slot = 0; slot < updateFiles.keys.size(); slot++) {
+            String path = updateFiles.keys.get(slot);
+
+            if (path != null)
+                result.add(createUpdateFile(updateFiles.seqs[slot], path));
+        }
+
+        return result;
+    }
+
+    /**
+     * 根据文件变动的编号创建 TempUpdateFile
+     *
+     * @param path 文件现在的路径，文件被移动过时和文件变动里的路径不一样
+     */
+    TempUpdateFile createUpdateFile(long seq, String path) {
+        TempVersionMeta meta = metas.get((int) (seq >>> 32));
+        ChangeList changes = meta.metadata.changes;
+        int row = (int) seq;
+
+        return new TempUpdateFile(meta.filename, meta.metadata.label, path, changes.hash(row),
+                changes.length(row), changes.modified(row), changes.offset(row), tempDir, changes.path(row));
+    }
+
+    public ArrayList<String> getDeleteFolders() {
+        return deleteFolders.toList();
+    }
+
+    public ArrayList<String> getDeleteFiles() {
+        return deleteFiles.toList();
+    }
+
+    public ArrayList<TempMoveFile> getMoveFiles() {
+        return new ArrayList<>(moveFiles);
+    }
+
+    /**
+     * 带索引的路径列表，保持添加顺序，允许有重复的路径<p>
+     * 删除路径时只把位置置空，不移动后面的元素，这样索引里记录的位置一直有效
+     */
+    static class IndexedList {
+        /**
+         * 所有路径，被删除的位置是null
+         */
+        ArrayList<String> keys = new ArrayList<>();
+
+        /**
+         * 每个位置上的路径来自哪个文件变动的编号
+         */
+        long[] seqs = new long[16];
+
+        /**
+         * 每个路径出现的所有位置，从小到大排列
+         */
+        HashMap<String, ArrayList<Integer>> index = new HashMap<>();
+
+        /**
+         * 在末尾添加一个路径
+         */
+        void add(String key, long seq) {
+            if (keys.size() == seqs.length)
+                seqs = Arrays.copyOf(seqs, seqs.length * 2);
+
+            seqs[keys.size()] = seq;
+            index.computeIfAbsent(key, k -> new ArrayList<>(1)).add(keys.size());
+            keys.add(key);
+        }
+
+        boolean contains(String key) {
+            return index.containsKey(key);
+        }
+
+        /**
+         * 获取这个路径第一次出现的位置，没有时返回-1
+         */
+        int firstSlot(String key) {
+            ArrayList<Integer> slots = index.get(key);
+
+            return slots != null ? slots.get(0) : -1;
+        }
+
+        /**
+         * 删除第一个相同的路径，相当于 ArrayList.remove(Object)
+         *
+         * @return 有没有删除
+         */
+        boolean removeFirst(String key) {
+            ArrayList<Integer> slots = index.get(key);
+
+            if (slots == null)
+                return false;
+
+            keys.set(slots.remove(0), null);
+
+            if (slots.isEmpty())
+                index.remove(key);
+
+            return true;
+        }
+
+        /**
+         * 删除所有相同的路径，相当于 ArrayList.removeIf
+         */
+        void removeAll(String key) {
+            ArrayList<Integer> slots = index.remove(key);
+
+            if (slots == null)
+                return;
+
+            for (int slot : slots)
+                keys.set(slot, null);
+        }
+
+        /**
+         * 把某个位置上的路径从 from 改成 to
+         */
+        void rekey(int slot, String from, String to) {
+            ArrayList<Integer> slots = index.get(from);
+
+            slots.remove((Integer) slot);
+
+            if (slots.isEmpty())
+                index.remove(from);
+
+            ArrayList<Integer> target = index.computeIfAbsent(to, k -> new ArrayList<>(1));
+            int pos = Collections.binarySearch(target, slot);
+
+            target.add(-pos - 1, slot);
+            keys.set(slot, to);
+        }
+
+        /**
+         * 按添加顺序返回所有还在的路径的编号
+         */
+        long[] liveSeqs() {
+            long[] result = new long[keys.size()];
+            int count = 0;
+
+            for (int slot = 0; slot < keys.size(); slot++) {
+                if (keys.get(slot) != null)
+                    result[count++] = seqs[slot];
+            }
+
+            return Arrays.copyOf(result, count);
+        }
+
+        /**
+         * 按添加顺序返回所有还在的路径
+         */
+        ArrayList<String> toList() {
+            ArrayList<String> result = new ArrayList<>(keys.size());
+
+            for (String key : keys) {
+                if (key != null)
+                    result.add(key);
+            }
+
+            return result;
+        }
+    }
+}
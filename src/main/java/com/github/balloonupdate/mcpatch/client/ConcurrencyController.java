@@ -0,0 +1,237 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.logging.Log;
+import com.github.balloonupdate.mcpatch.client.utils.BytesUtils;
+
+/**
+ * 根据实测的网速和失败次数自动调整同时进行的下载请求数量（AIMD 方式）<p>
+ * 每隔一段时间评估一次：期间有请求失败时，说明服务器可能开始限流了，并发数直接减半；
+ * 没有失败时每次尝试加 1，如果网速随之有明显提高就继续加，没有提高说明已经跑满了带宽，退回到上一个值并保持一段时间后再试探。
+ * 出现失败时的并发数会被记下来，之后很长一段时间内不会再加到这个值<p>
+ * 每个下载请求开始前需要调用 acquire 获取许可，结束后调用 release 归还，所有方法都是线程安全的
+ */
+public class ConcurrencyController {
+    /**
+     * 评估间隔，单位毫秒
+     */
+    static final long interval = 2000;
+
+    /**
+     * 增加并发数之后，网速至少要提高这么多（百分比）才认为有效果
+     */
+    static final int growthPercent = 10;
+
+    /**
+     * 保持多少个评估周期之后再试探着增加并发数
+     */
+    static final int probeAfter = 5;
+
+    /**
+     * 多少个评估周期没有出现失败之后，不再限制并发数不能达到 ceiling
+     */
+    static final int ceilingRounds = 30;
+
+    /**
+     * 是否自动调整并发数，为false时一直使用初始的并发数
+     */
+    boolean adaptive;
+
+    /**
+     * 并发数的上限
+     */
+    int max;
+
+    /**
+     * 当前允许同时进行的请求数量
+     */
+    int limit;
+
+    /**
+     * 正在进行的请求数量
+     */
+    int inFlight = 0;
+
+    /**
+     * 下载进度，用来获取网速和失败次数
+     */
+    DownloadProgress progress;
+
+    /**
+     * 上次评估的时间
+     */
+    long lastUpdate;
+
+    /**
+     * 上次评估时累计的失败次数
+     */
+    long lastFailures = 0;
+
+    /**
+     * 上一次增加并发数之前的网速
+     */
+    long baseline = 0;
+
+    /**
+     * 上一次评估是否刚刚增加了并发数，正在等待看效果
+     */
+    boolean probing = false;
+
+    /**
+     * 刚刚因为失败减小了并发数，要等之前发出的请求都结束之后再重新开始评估
+     */
+    boolean settling = false;
+
+    /**
+     * 并发数保持不变已经多少个评估周期了
+     */
+    int stableRounds = probeAfter;
+
+    /**
+     * 上次出现失败时的并发数，之后增加并发数时不会再达到这个值，避免反复触发服务器限流
+     */
+    int ceiling = Integer.MAX_VALUE;
+
+    /**
+     * 并发数最高达到过多少
+     */
+    int peak;
+
+    /**
+     * @param initial 初始的并发数
+     * @param max 并发数的上限，不大于 initial 时不进行调整
+     */
+    public ConcurrencyController(int initial, int max, DownloadProgress progress) {
+        this.limit = Math.max(1, initial);
+        this.max = Math.max(limit, max);
+        this.adaptive = max > limit;
+        this.progress = progress;
+        this.lastUpdate = System.currentTimeMillis();
+        this.peak = limit;
+    }
+
+    /**
+     * 获取一个许可，当前正在进行的请求数量达到了并发数时会一直等待
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= limit)
+            wait();
+
+        inFlight += 1;
+    }
+
+    /**
+     * 归还一个许可
+     */
+    public synchronized void release() {
+        inFlight -= 1;
+
+        notifyAll();
+    }
+
+    /**
+     * 距离上次评估超过了评估间隔时，根据这段时间的网速和失败次数调整并发数，需要定期调用
+     */
+    public synchronized void update() {
+        long now = System.currentTimeMillis();
+
+        if (!adaptive || now - lastUpdate < interval)
+            return;
+
+        lastUpdate = now;
+
+        long failures = progress.getFailures() - lastFailures;
+        long speed = progress.speed.sampleSpeed();
+
+        lastFailures += failures;
+
+        // 刚减小了并发数，之前发出的请求还没有全部结束，这期间的失败是减小之前造成的，不再重复计算。
+        // 请求都结束之后的第一个周期里也可能混有之前的失败，同样跳过
+        if (settling) {
+            if (inFlight <= limit)
+                settling = false;
+
+            return;
+        }
+
+        // 出现了失败，并发数减半
+        if (failures > 0) {
+            int next = Math.max(1, limit / 2);
+
+            Log.debug(String.format("下载并发数 %d -> %d，最近 %d 次请求失败了，当前网速 %s/s", limit, next, failures, BytesUtils.convertBytes(speed)));
+
+            ceiling = Math.min(ceiling, Math.max(2, limit));
+            limit = next;
+            probing = false;
+            settling = true;
+            stableRounds = 0;
+            return;
+        }
+
+        // 剩下的请求不够占满所有许可时，测出来的网速说明不了问题
+        if (inFlight < limit)
+            return;
+
+        if (probing) {
+            probing = false;
+
+            // 加了并发之后网速有明显提高，继续加
+            if (speed * 100 >= baseline * (100 + growthPercent)) {
+                increase(speed);
+                return;
+            }
+
+            // 没有效果，说明已经跑满了带宽，退回去
+            Log.debug(String.format("下载并发数 %d -> %d，网速没有明显提高（%s/s -> %s/s）", limit, limit - 1, BytesUtils.convertBytes(baseline), BytesUtils.convertBytes(speed)));
+
+            limit -= 1;
+            stableRounds = 0;
+            return;
+        }
+
+        // 保持一段时间之后再试探一次，网络状况可能已经变了
+        stableRounds += 1;
+
+        // 很长时间没有出现失败了，服务器的限制可能已经放开了
+        if (stableRounds >= ceilingRounds && ceiling != Integer.MAX_VALUE) {
+            Log.debug(String.format("下载并发数已经 %d 个周期没有出现失败，不再限制在 %d 以下", stableRounds, ceiling));
+
+            ceiling = Integer.MAX_VALUE;
+        }
+
+        if (stableRounds >= probeAfter)
+            increase(speed);
+    }
+
+    /**
+     * 尝试把并发数加 1，下一次评估时看效果
+     */
+    void increase(long speed) {
+        if (limit >= max || limit + 1 >= ceiling)
+            return;
+
+        stableRounds = 0;
+
+        Log.debug(String.format("下载并发数 %d -> %d，当前网速 %s/s", limit, limit + 1, BytesUtils.convertBytes(speed)));
+
+        baseline = speed;
+        limit += 1;
+        peak = Math.max(peak, limit);
+        probing = true;
+
+        notifyAll();
+    }
+
+    /**
+     * 获取当前的并发数
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * 获取并发数最高达到过多少
+     */
+    public synchronized int getPeak() {
+        return peak;
+    }
+}
@@ -0,0 +1,262 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.TempMoveFile;
+import com.github.balloonupdate.mcpatch.client.data.TempUpdateFile;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 删除计划，更新前剔除掉已经不存在的要删除的文件和目录，并且尽量少访问文件系统<p>
+ * 删除一个大目录时，更新记录里会同时有这个目录以及里面的每一个文件和子目录。这些路径放进一棵路径树里从上往下检查，
+ * 要删除的目录本身已经不存在时，里面的文件和子目录肯定也不存在，整棵子树不需要再一个个检查，from 在这个目录里的移动文件也不会生效，可以直接去掉。
+ * 要删除的文件不存在时也是一样<p>
+ * 只有更新过程中不会有东西被放进这个目录时才能这样跳过，也就是这个目录里没有要创建的目录、要下载的文件和移动文件的 to。
+ * 这一步判断不区分大小写，在不区分大小写的文件系统上也不会误判<p>
+ * 客户端不会删除 deleteFolders 里的目录（里面可能有玩家自己放的文件），所以目录还在时，里面要删除的文件仍然需要一个个检查和删除
+ */
+public class DeletePlanner {
+    /**
+     * 更新的根目录
+     */
+    Path baseDir;
+
+    /**
+     * 路径树的根节点
+     */
+    Node root = new Node();
+
+    /**
+     * 检查过并且存在的要删除的路径
+     */
+    HashSet<String> existing = new HashSet<>();
+
+    /**
+     * 包含 .. 的要删除的路径，不放进路径树，单独检查
+     */
+    HashSet<String> others = new HashSet<>();
+
+    /**
+     * 更新过程中会被写入的路径以及它们的所有上级目录，统一转成小写
+     */
+    HashSet<String> written = new HashSet<>();
+
+    /**
+     * 有包含 .. 的路径会被写入，没法确定写到了哪里，这时不跳过任何子树
+     */
+    boolean writtenAnywhere = false;
+
+    /**
+     * 没有检查就直接去掉的文件、目录和移动文件的数量
+     */
+    int skipped = 0;
+
+    public DeletePlanner(Path baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    /**
+     * 剔除掉不存在的要删除的文件和目录，以及 from 所在的目录已经不存在的移动文件，各个列表会被直接修改
+     *
+     * @param createFolders 要创建的目录
+     * @param updateFiles 要下载的文件
+     */
+    public void plan(
+            List<String> createFolders,
+            List<TempUpdateFile> updateFiles,
+            ArrayList<String> deleteFolders,
+            ArrayList<String> deleteFiles,
+            ArrayList<TempMoveFile> moveFiles
+    ) {
+        for (String f : createFolders)
+            addWritten(f);
+
+        for (TempUpdateFile f : updateFiles)
+            addWritten(f.path);
+
+        for (TempMoveFile f : moveFiles)
+            addWritten(f.to);
+
+        for (String f : deleteFolders)
+            insert(f);
+
+        for (String f : deleteFiles)
+            insert(f);
+
+        check(root, "");
+
+        for (String f : others) {
+            if (Files.exists(baseDir.resolve(f)))
+                existing.add(f);
+        }
+
+        deleteFiles.removeIf(f -> !existing.contains(f));
+        deleteFolders.removeIf(f -> !existing.contains(f));
+
+        int moves = moveFiles.size();
+
+        moveFiles.removeIf(f -> isPruned(f.from));
+
+        skipped += moves - moveFiles.size();
+    }
+
+    /**
+     * 没有检查就直接去掉的文件、目录和移动文件的数量
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * 从上往下检查路径树上的每个要删除的路径是否存在
+     *
+     * @param key 这个节点的路径，转成小写，用来在 written 里查找
+     */
+    void check(Node node, String key) {
+        boolean missing = false;
+
+        // 写法不同的路径分别检查，比如 a 是文件时 a 存在，而 a/. 不存在
+        for (String path : node.paths) {
+            if (Files.exists(baseDir.resolve(path)))
+                existing.add(path);
+            else
+                missing = true;
+        }
+
+        // 不存在或者不是目录，而且更新过程中也不会有东西放进来，里面的东西都不可能存在，整棵子树都可以跳过
+        if (missing && !writtenAnywhere && !written.contains(key)) {
+            node.pruned = true;
+            skipped += count(node) - node.paths.size();
+            return;
+        }
+
+        for (Map.Entry<String, Node> child : node.children.entrySet())
+            check(child.getValue(), join(key, child.getKey().toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * 统计一棵子树里有多少个要删除的路径
+     */
+    static int count(Node node) {
+        int result = node.paths.size();
+
+        for (Node child : node.children.values())
+            result += count(child);
+
+        return result;
+    }
+
+    /**
+     * 判断一个路径是否在被跳过的子树里
+     */
+    boolean isPruned(String path) {
+        List<String> names = split(path);
+
+        if (names == null)
+            return false;
+
+        Node node = root;
+
+        // 只看上级目录，被跳过的节点本身换一种写法时可能是存在的，比如 a 是文件时 a/. 不存在
+        for (String name : names) {
+            if (node.pruned)
+                return true;
+
+            node = node.children.get(name);
+
+            if (node == null)
+                return false;
+        }
+
+        return false;
+    }
+
+    /**
+     * 把一个要删除的路径放进路径树里
+     */
+    void insert(String path) {
+        List<String> names = split(path);
+
+        if (names == null) {
+            others.add(path);
+            return;
+        }
+
+        Node node = root;
+
+        for (String name : names)
+            node = node.children.computeIfAbsent(name, k -> new Node());
+
+        // 写法不同的多个路径（比如 a//b 和 a/b）会落在同一个节点上
+        if (!node.paths.contains(path))
+            node.paths.add(path);
+    }
+
+    /**
+     * 记录一个会被写入的路径以及它的所有上级目录
+     */
+    void addWritten(String path) {
+        List<String> names = split(path);
+
+        if (names == null) {
+            writtenAnywhere = true;
+            return;
+        }
+
+        String key = "";
+
+        for (String name : names) {
+            key = join(key, name.toLowerCase(Locale.ROOT));
+            written.add(key);
+        }
+    }
+
+    static String join(String parent, String name) {
+        return parent.isEmpty() ? name : parent + "/" + name;
+    }
+
+    /**
+     * 按 / 拆开路径，Windows 上 \ 也是分隔符，忽略空的部分和 .<p>
+     * 包含 .. 时返回null，a/../b 在 a 不存在时也不存在，没法按路径树上的上下级关系判断
+     */
+    static List<String> split(String path) {
+        List<String> result = new ArrayList<>();
+
+        for (String name : path.split(File.separatorChar == '\\' ? "[/\\\\]" : "/")) {
+            if (name.equals(".."))
+                return null;
+
+            if (!name.isEmpty() && !name.equals("."))
+                result.add(name);
+        }
+
+        return result;
+    }
+
+    /**
+     * 路径树上的一个节点，代表一个文件或者目录
+     */
+    static class Node {
+        /**
+         * 下级文件和目录，键是名字
+         */
+        HashMap<String, Node> children = new HashMap<>();
+
+        /**
+         * 落在这个节点上的要删除的路径，只是上级目录时为空
+         */
+        ArrayList<String> paths = new ArrayList<>(1);
+
+        /**
+         * 这个路径不存在，整棵子树都被跳过了
+         */
+        boolean pruned = false;
+    }
+}
@@ -0,0 +1,284 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.TempUpdateFile;
+import com.github.balloonupdate.mcpatch.client.logging.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下载日志，保存在临时目录里，记录每个临时文件的下载进度<p>
+ * 程序中途退出后，下次启动时已经下载并校验好的临时文件可以直接使用，下载了一部分的临时文件可以从中断的位置继续下载。
+ * 多个下载线程会同时更新日志，因此所有方法都是线程安全的
+ */
+public class DownloadJournal {
+    /**
+     * 最短保存间隔，单位毫秒。下载过程中频繁更新进度，没必要每次都写一遍磁盘
+     */
+    static final long saveInterval = 1000;
+
+    /**
+     * 日志文件的存放位置
+     */
+    Path file;
+
+    /**
+     * 这次要更新到的版本号，日志里记录的版本号不一样时，里面的内容全部作废
+     */
+    String version;
+
+    /**
+     * 已经下载并校验通过的文件，相对路径 -> 校验值
+     */
+    HashMap<String, String> completed = new HashMap<>();
+
+    /**
+     * 下载了一部分的文件，相对路径 -> 下载进度
+     */
+    HashMap<String, Partial> partials = new HashMap<>();
+
+    /**
+     * 日志内容是否发生了变化，没有变化时不需要重新保存
+     */
+    boolean dirty = false;
+
+    /**
+     * 上次保存的时间
+     */
+    long lastSave = 0;
+
+    public DownloadJournal(Path file, String version) {
+        this.file = file;
+        this.version = version;
+    }
+
+    /**
+     * 从磁盘上加载日志，日志文件不存在、损坏或者是其它版本的日志时会当作一份空的日志处理
+     */
+    public synchronized void load() {
+        completed.clear();
+        partials.clear();
+
+        if (!Files.exists(file))
+            return;
+
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+            if (!version.equals(json.getString("version"))) {
+                Log.debug("下载日志属于另一个版本 " + json.getString("version") + "，不再使用");
+                return;
+            }
+
+            JSONObject completedJson = json.getJSONObject("completed");
+
+            for (String key : completedJson.keySet())
+                completed.put(key, completedJson.getString(key));
+
+            JSONObject partialsJson = json.getJSONObject("partials");
+
+            for (String key : partialsJson.keySet()) {
+                JSONObject obj = partialsJson.getJSONObject(key);
+                JSONArray doneJson = obj.getJSONArray("done");
+
+                long[] done = new long[doneJson.length()];
+
+                for (int i = 0; i < done.length; i++)
+                    done[i] = doneJson.getLong(i);
+
+                partials.put(key, new Partial(obj.getString("hash"), obj.getLong("segment-size"), done));
+            }
+        } catch (IOException | JSONException e) {
+            Log.warn("下载日志读取失败，将重新下载所有文件: " + e);
+
+            completed.clear();
+            partials.clear();
+        }
+    }
+
+    /**
+     * 检查一个文件上次是否已经下载并校验好了。临时文件的大小或者修改时间对不上时说明被动过了，不能再使用
+     */
+    public synchronized boolean isCompleted(TempUpdateFile f) {
+        if (!f.hash.equals(completed.get(f.path)))
+            return false;
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(f.getTempPath(), BasicFileAttributes.class);
+
+            return attributes.isRegularFile()
+                    && attributes.size() == f.length
+                    && attributes.lastModifiedTime().to(TimeUnit.SECONDS) == f.modified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 记录一个文件已经下载并校验通过了
+     */
+    public synchronized void complete(TempUpdateFile f) {
+        completed.put(f.path, f.hash);
+        partials.remove(f.path);
+        dirty = true;
+
+        saveLater();
+    }
+
+    /**
+     * 忘掉一个文件的下载进度，下次需要从头下载。会立即保存，避免下次启动又接着使用有问题的数据
+     */
+    public synchronized void discard(TempUpdateFile f) {
+        completed.remove(f.path);
+        partials.remove(f.path);
+        dirty = true;
+
+        try {
+            save();
+        } catch (IOException e) {
+            Log.warn("下载日志保存失败: " + e);
+        }
+    }
+
+    /**
+     * 查询一个文件上次每一段分别下载了多少字节
+     *
+     * @param f 要查询的文件
+     * @param segmentSize 每一段的大小，不分段时就是文件大小
+     * @param count 一共分成了多少段
+     * @return 每一段已经下载的字节数，上次没有下载过或者分段方式对不上时返回null
+     */
+    public synchronized long[] getPartial(TempUpdateFile f, long segmentSize, int count) {
+        Partial partial = partials.get(f.path);
+
+        if (partial == null || !partial.hash.equals(f.hash) || partial.segmentSize != segmentSize || partial.done.length != count)
+            return null;
+
+        return partial.done.clone();
+    }
+
+    /**
+     * 记录一个文件某一段的下载进度
+     *
+     * @param f 正在下载的文件
+     * @param segmentSize 每一段的大小，不分段时就是文件大小
+     * @param count 一共分成了多少段
+     * @param segment 第几段
+     * @param done 这一段已经写入临时文件的字节数
+     */
+    public synchronized void progress(TempUpdateFile f, long segmentSize, int count, int segment, long done) {
+        Partial partial = partials.get(f.path);
+
+        if (partial == null || !partial.hash.equals(f.hash) || partial.segmentSize != segmentSize || partial.done.length != count) {
+            partial = new Partial(f.hash, segmentSize, new long[count]);
+            partials.put(f.path, partial);
+        }
+
+        partial.done[segment] = done;
+        dirty = true;
+
+        saveLater();
+    }
+
+    /**
+     * 距离上次保存超过一定时间才保存，保存失败也不影响下载
+     */
+    void saveLater() {
+        if (System.currentTimeMillis() - lastSave < saveInterval)
+            return;
+
+        try {
+            save();
+        } catch (IOException e) {
+            Log.warn("下载日志保存失败: " + e);
+        }
+    }
+
+    /**
+     * 将日志保存到磁盘上。先写入到临时文件里，再替换掉原来的文件，避免中途退出时留下写了一半的日志文件
+     */
+    public synchronized void save() throws IOException {
+        lastSave = System.currentTimeMillis();
+
+        if (!dirty)
+            return;
+
+        JSONObject completedJson = new JSONObject();
+
+        for (Map.Entry<String, String> e : completed.entrySet())
+            completedJson.put(e.getKey(), e.getValue());
+
+        JSONObject partialsJson = new JSONObject();
+
+        for (Map.Entry<String, Partial> e : partials.entrySet()) {
+            JSONObject obj = new JSONObject();
+
+            obj.put("hash", e.getValue().hash);
+            obj.put("segment-size", e.getValue().segmentSize);
+
+            JSONArray doneJson = new JSONArray();
+
+            for (long done : e.getValue().done)
+                doneJson.put(done);
+
+            obj.put("done", doneJson);
+
+            partialsJson.put(e.getKey(), obj);
+        }
+
+        JSONObject json = new JSONObject();
+
+        json.put("version", version);
+        json.put("completed", completedJson);
+        json.put("partials", partialsJson);
+
+        Path temp = file.resolveSibling(file.getFileName() + ".temp");
+
+        Files.write(temp, json.toString().getBytes(StandardCharsets.UTF_8));
+
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * 代表一个下载了一部分的文件
+     */
+    static class Partial {
+        /**
+         * 文件的校验值，用来确认下载的还是同一个文件
+         */
+        public String hash;
+
+        /**
+         * 每一段的大小
+         */
+        public long segmentSize;
+
+        /**
+         * 每一段已经写入临时文件的字节数
+         */
+        public long[] done;
+
+        public Partial(String hash, long segmentSize, long[] done) {
+            this.hash = hash;
+            this.segmentSize = segmentSize;
+            this.done = done;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.DownloadGroup;
+import com.github.balloonupdate.mcpatch.client.data.TempUpdateFile;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 下载计划，把同一个更新包里位置相邻或者离得很近的文件合并成一个下载请求，减少请求次数<p>
+ * 合并的代价是要多下载文件之间的空隙，收益是省掉了若干次请求的往返延迟。空隙不超过 mergeGap 时认为合并更划算；
+ * 另外如果一个更新包里大部分数据都要下载，那么空隙在整体中占比很小，此时不论空隙大小全部合并<p>
+ * 合并完之后仍然离得比较远的小请求，在服务器支持的情况下会再合并成多范围请求，一次请求多段不相邻的数据，段与段之间的数据不需要下载
+ */
+public class DownloadPlanner {
+    /**
+     * 合并后一个请求最多下载多少字节。请求太大的话会拖慢多个请求同时下载的效果，也会让失败重试的代价变大
+     */
+    public static final long maxGroupSize = 16 * 1024 * 1024;
+
+    /**
+     * 不超过这个大小的请求才会合并成多范围请求。大请求的时间主要花在传输数据上，往返延迟占比很小，单独下载更能发挥多个请求同时下载的效果
+     */
+    public static final long maxBatchPartSize = 256 * 1024;
+
+    /**
+     * 两个文件之间的空隙不超过这么多字节时就合并到同一个请求里，小于0时不进行任何合并
+     */
+    long mergeGap;
+
+    /**
+     * 一个更新包里要下载的数据占比（百分比）达到此值时，不论空隙大小全部合并，为0时不启用
+     */
+    int mergeRatio;
+
+    /**
+     * 一个多范围请求最多包含多少段，小于2时不合并成多范围请求
+     */
+    int batchRanges;
+
+    public DownloadPlanner(long mergeGap, int mergeRatio, int batchRanges) {
+        this.mergeGap = mergeGap;
+        this.mergeRatio = mergeRatio;
+        this.batchRanges = batchRanges;
+    }
+
+    /**
+     * 生成下载计划
+     *
+     * @param files 要下载的文件
+     * @return 每一项代表一个下载请求，包含一个或者多个文件
+     */
+    public List<DownloadGroup> plan(List<TempUpdateFile> files) {
+        List<DownloadGroup> result = new ArrayList<>();
+
+        // 按更新包分组，保持更新包第一次出现时的顺序
+        LinkedHashMap<String, List<TempUpdateFile>> containers = new LinkedHashMap<>();
+
+        for (TempUpdateFile f : files) {
+            // 空文件不需要下载，单独处理
+            if (f.length == 0 || mergeGap < 0) {
+                result.add(new DownloadGroup(f));
+                continue;
+            }
+
+            containers.computeIfAbsent(f.containerName, k -> new ArrayList<>()).add(f);
+        }
+
+        for (List<TempUpdateFile> list : containers.values()) {
+            list.sort(Comparator.comparingLong(e -> e.offset));
+
+            long gapLimit = isMostlyNeeded(list) ? Long.MAX_VALUE : mergeGap;
+
+            List<DownloadGroup> groups = new ArrayList<>();
+            DownloadGroup group = null;
+
+            for (TempUpdateFile f : list) {
+                if (group != null && canMerge(group, f, gapLimit)) {
+                    group.add(f);
+                } else {
+                    group = new DownloadGroup(f);
+                    groups.add(group);
+                }
+            }
+
+            result.addAll(batchRanges > 1 ? batch(groups) : groups);
+        }
+
+        return result;
+    }
+
+    /**
+     * 把同一个更新包里的小请求合并成多范围请求
+     *
+     * @param groups 同一个更新包里的所有请求，已经按偏移值排好序
+     */
+    List<DownloadGroup> batch(List<DownloadGroup> groups) {
+        List<DownloadGroup> result = new ArrayList<>();
+        DownloadGroup batch = null;
+
+        for (DownloadGroup group : groups) {
+            // 大请求单独下载
+            if (group.range.len() > maxBatchPartSize) {
+                result.add(group);
+                continue;
+            }
+
+            if (batch != null && canBatch(batch, group)) {
+                batch.addParts(group);
+            } else {
+                batch = group;
+                result.add(batch);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * 判断一个请求能否追加到一个多范围请求的末尾
+     */
+    boolean canBatch(DownloadGroup batch, DownloadGroup group) {
+        // 和前面的段重叠了，不能合并
+        if (group.range.start < batch.range.end)
+            return false;
+
+        if (batch.parts.size() + group.parts.size() > batchRanges)
+            return false;
+
+        return batch.partsLength() + group.partsLength() <= maxGroupSize;
+    }
+
+    /**
+     * 判断一个文件能否追加到一个请求的末尾
+     */
+    static boolean canMerge(DownloadGroup group, TempUpdateFile f, long gapLimit) {
+        long gap = f.offset - group.range.end;
+
+        // 和前一个文件重叠了（比如两个路径共用同一份数据），不能合并
+        if (gap < 0)
+            return false;
+
+        if (gap > gapLimit)
+            return false;
+
+        return f.offset + f.length - group.range.start <= maxGroupSize;
+    }
+
+    /**
+     * 判断一个更新包里是否大部分数据都要下载
+     *
+     * @param list 这个更新包里要下载的文件，已经按偏移值排好序
+     */
+    boolean isMostlyNeeded(List<TempUpdateFile> list) {
+        if (mergeRatio <= 0 || list.size() < 2)
+            return false;
+
+        long start = list.get(0).offset;
+        long end = 0;
+        long needed = 0;
+
+        for (TempUpdateFile f : list) {
+            end = Math.max(end, f.offset + f.length);
+            needed += f.length;
+        }
+
+        return needed * 100 >= (end - start) * mergeRatio;
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.ui.McPatchWindow;
+import com.github.balloonupdate.mcpatch.client.utils.BytesUtils;
+import com.github.balloonupdate.mcpatch.client.utils.SpeedStat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 汇总所有文件的下载进度并显示到UI上。多个文件同时下载时，每个下载线程都会往这里报告进度，因此所有方法都是线程安全的
+ */
+public class DownloadProgress {
+    /**
+     * UI窗口，非图形模式下会是null
+     */
+    McPatchWindow window;
+
+    /**
+     * 所有文件加起来一共要下载多少字节
+     */
+    long totalBytes;
+
+    /**
+     * 所有文件加起来已经下载了多少字节
+     */
+    final AtomicLong downloaded = new AtomicLong();
+
+    /**
+     * 下载失败（包括之后重试成功了的）的次数
+     */
+    final AtomicLong failures = new AtomicLong();
+
+    /**
+     * 网速统计
+     */
+    final SpeedStat speed = new SpeedStat(1500);
+
+    /**
+     * 上次刷新UI的时间
+     */
+    final AtomicLong uiTimer = new AtomicLong(System.currentTimeMillis() - 600);
+
+    public DownloadProgress(McPatchWindow window, long totalBytes) {
+        this.window = window;
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * 报告新下载了一些字节
+     */
+    public void feed(long bytes) {
+        downloaded.addAndGet(bytes);
+        speed.feed(bytes);
+
+        if (window == null)
+            return;
+
+        // 控制刷新频率，多个线程同时到达时只需要其中一个去刷新
+        long now = System.currentTimeMillis();
+        long last = uiTimer.get();
+
+        if (now - last > 300 && uiTimer.compareAndSet(last, now))
+            updateUI();
+    }
+
+    /**
+     * 报告有一些字节不需要下载了，比如上次启动时已经下载好的部分。只计入总进度，不计入网速
+     */
+    public void skip(long bytes) {
+        downloaded.addAndGet(bytes);
+    }
+
+    /**
+     * 某个文件下载失败了，从总进度里扣掉这个文件已经报告过的字节数
+     */
+    public void fallback(long bytes) {
+        downloaded.addAndGet(-bytes);
+        failures.incrementAndGet();
+
+        if (window != null)
+            updateUI();
+    }
+
+    /**
+     * 获取所有文件加起来已经下载了多少字节
+     */
+    public long getDownloaded() {
+        return downloaded.get();
+    }
+
+    /**
+     * 获取目前为止一共失败了多少次
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * 刷新进度条和网速
+     */
+    public void updateUI() {
+        long d = downloaded.get();
+
+        window.setProgressBarText(String.format("%s/%s  -  %s/s", BytesUtils.convertBytes(d), BytesUtils.convertBytes(totalBytes), speed.sampleSpeed2()));
+        window.setProgressBarValue((int) (d / (float) totalBytes * 1000));
+    }
+}
@@ -0,0 +1,259 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.DownloadGroup;
+import com.github.balloonupdate.mcpatch.client.data.TempUpdateFile;
+import com.github.balloonupdate.mcpatch.client.utils.FileHasher;
+import com.github.balloonupdate.mcpatch.client.utils.HashUtility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 把一个合并请求下载到的数据拆分到各个文件的临时文件里，文件之间空隙部分的数据会被直接丢弃，同时计算每个文件的校验值<p>
+ * 多范围请求收到的数据是各段数据首尾相连拼起来的，一段写完后会直接跳到下一段的开头<p>
+ * 一个请求里的文件不会重叠，所以同一时间只会写入一个文件，只需要一个校验值计算器<p>
+ * 同时也是一个 WritableByteChannel，收到的数据在堆外内存里时可以直接写入临时文件
+ */
+public class GroupOutputStream extends OutputStream implements WritableByteChannel {
+    /**
+     * 对应的下载请求
+     */
+    DownloadGroup group;
+
+    /**
+     * 校验值计算器
+     */
+    FileHasher hasher;
+
+    /**
+     * 下一个字节在更新包里的偏移值
+     */
+    long position;
+
+    /**
+     * 正在写入第几段
+     */
+    int part;
+
+    /**
+     * 正在写入第几个文件
+     */
+    int index;
+
+    /**
+     * 正在写入的临时文件，还没开始写入下一个文件时是null
+     */
+    FileChannel current;
+
+    /**
+     * 每个文件的校验值，文件写完时才会记录
+     */
+    String[] hashes;
+
+    /**
+     * 每个文件写完时的事件
+     */
+    OnFileWritten onFileWritten;
+
+    public GroupOutputStream(DownloadGroup group, FileHasher hasher, OnFileWritten onFileWritten) {
+        this.group = group;
+        this.hasher = hasher;
+        this.onFileWritten = onFileWritten;
+    }
+
+    /**
+     * 打开输出流，下载开始和每次重试时都会调用
+     *
+     * @param resumeFrom 从请求范围内的第几个字节开始继续接收，为0时从头开始，之前写入的数据全部丢弃。多范围请求时是各段拼起来之后的位置
+     */
+    public GroupOutputStream open(long resumeFrom) throws IOException {
+        close();
+
+        if (resumeFrom == 0) {
+            part = 0;
+            position = group.parts.get(0).start;
+            index = 0;
+            hashes = new String[group.files.size()];
+
+            return this;
+        }
+
+        // 找到续传的位置落在哪一段上
+        int targetPart = 0;
+        long skipped = 0;
+
+        while (targetPart < group.parts.size() - 1 && skipped + group.parts.get(targetPart).len() <= resumeFrom) {
+            skipped += group.parts.get(targetPart).len();
+            targetPart += 1;
+        }
+
+        long target = group.parts.get(targetPart).start + resumeFrom - skipped;
+
+        // 正常情况下续传的位置就是上次写到的位置，之前的状态可以直接使用。
+        // 如果上次是写入临时文件时出了错，实际确认写入的数据会比记录的少，这时需要回退到确认过的位置，重新计算那个文件的校验值
+        boolean rewind = target != position;
+
+        if (rewind) {
+            part = targetPart;
+            index = 0;
+
+            while (index < group.files.size() && end(group.files.get(index)) <= target)
+                index += 1;
+
+            for (int i = index; i < hashes.length; i++)
+                hashes[i] = null;
+
+            position = target;
+        }
+
+        // 续传的位置落在某个文件中间，丢弃这个文件后面可能只写入了一半的数据
+        if (index < group.files.size() && group.files.get(index).offset < position) {
+            TempUpdateFile f = group.files.get(index);
+            long keep = position - f.offset;
+
+            try (FileChannel channel = FileChannel.open(f.getTempPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.truncate(keep);
+
+                if (rewind) {
+                    hasher.setAlgorithm(HashUtility.getAlgorithm(f.hash));
+                    hasher.update(channel, 0, keep);
+                }
+            }
+        }
+
+        return this;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int total = src.remaining();
+
+        while (src.hasRemaining() && index < group.files.size()) {
+            TempUpdateFile f = group.files.get(index);
+
+            // 丢弃文件之间的空隙
+            if (position < f.offset) {
+                int skip = (int) Math.min(src.remaining(), f.offset - position);
+
+                advance(skip);
+                src.position(src.position() + skip);
+                continue;
+            }
+
+            if (current == null) {
+                if (position == f.offset) {
+                    current = FileChannel.open(f.getTempPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    hasher.setAlgorithm(HashUtility.getAlgorithm(f.hash));
+                } else {
+                    // 断点续传，接着这个文件已经写入的部分继续写
+                    current = FileChannel.open(f.getTempPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+            }
+
+            int n = (int) Math.min(src.remaining(), end(f) - position);
+
+            ByteBuffer data = src.duplicate();
+            data.limit(data.position() + n);
+
+            // 写入会移动 position，先记下这部分数据，写入成功后再计算校验值
+            ByteBuffer written = data.duplicate();
+
+            while (data.hasRemaining())
+                current.write(data);
+
+            hasher.update(written);
+            src.position(data.position());
+
+            // 这一段的最后一个文件写完后 position 会跳到下一段，所以要提前判断
+            boolean finished = position + n == end(f);
+
+            advance(n);
+
+            // 这个文件写完了
+            if (finished) {
+                current.close();
+                current = null;
+
+                hashes[index] = hasher.getHash();
+                index += 1;
+
+                onFileWritten.on(f, hashes[index - 1]);
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * 向后移动若干个字节，到达一段的末尾时跳到下一段的开头
+     */
+    void advance(long n) {
+        position += n;
+
+        if (position == group.parts.get(part).end && part < group.parts.size() - 1) {
+            part += 1;
+            position = group.parts.get(part).start;
+        }
+    }
+
+    /**
+     * 文件的数据在更新包里的结束位置
+     */
+    static long end(TempUpdateFile f) {
+        return f.offset + f.length;
+    }
+
+    /**
+     * 是否所有的文件都接收完整了
+     */
+    public boolean isComplete() {
+        return index == group.files.size();
+    }
+
+    /**
+     * 获取第几个文件的校验值，文件还没接收完整时返回null
+     */
+    public String getHash(int i) {
+        return hashes[i];
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    /**
+     * 一个文件的数据全部写入临时文件的事件
+     */
+    @FunctionalInterface
+    public interface OnFileWritten {
+        /**
+         * 当一个文件写完时，会通过这个方法报告这个文件实际的校验值
+         * @param f 写完的文件
+         * @param hash 临时文件实际的校验值
+         */
+        void on(TempUpdateFile f, String hash) throws IOException;
+    }
+}
@@ -0,0 +1,330 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.PathTable;
+import com.github.balloonupdate.mcpatch.client.data.Range;
+import com.github.balloonupdate.mcpatch.client.data.VersionIndex;
+import com.github.balloonupdate.mcpatch.client.data.VersionMeta;
+import com.github.balloonupdate.mcpatch.client.data.VersionMetaParser;
+import com.github.balloonupdate.mcpatch.client.exceptions.McpatchBusinessException;
+import com.github.balloonupdate.mcpatch.client.network.Servers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 同时下载多个版本的元数据<p>
+ * 同一个更新包文件里离得很近的几个版本的元数据会合并成一个请求下载，不同的请求同时进行。
+ * 元数据边下载边解析，不会在内存里保存原始的文本，按版本顺序能确定是重复的版本会在解析时直接跳过。
+ * 结果需要通过 get 按版本顺序依次取出，和逐个下载时的处理顺序保持一致
+ */
+public class MetadataFetcher implements AutoCloseable {
+    /**
+     * 合并后一个请求最多下载多少字节，单个版本的元数据超过这个大小时不受限制
+     */
+    static final long maxRequestSize = 16 * 1024 * 1024;
+
+    /**
+     * 服务器
+     */
+    Servers server;
+
+    /**
+     * 要下载元数据的版本
+     */
+    List<VersionIndex> versions;
+
+    /**
+     * 下载线程池
+     */
+    ExecutorService pool;
+
+    /**
+     * 每个版本的元数据在哪个请求里，下标和 versions 一一对应
+     */
+    List<Future<List<List<VersionMeta>>>> results;
+
+    /**
+     * 每个版本是所在请求里的第几个，下标和 versions 一一对应
+     */
+    int[] positions;
+
+    /**
+     * 每个 label 最早出现在第几个版本的元数据里，用来在解析时跳过重复的版本
+     */
+    HashMap<String, Integer> firstSeen = new HashMap<>();
+
+    /**
+     * 所有版本共用的路径表
+     */
+    PathTable paths = new PathTable();
+
+    /**
+     * 解析时跳过了多少个重复的版本
+     */
+    AtomicLong skipped = new AtomicLong();
+
+    /**
+     * 一共发起了多少个请求
+     */
+    int requestCount = 0;
+
+    /**
+     * 开始下载所有版本的元数据
+     *
+     * @param versions 要下载元数据的版本
+     * @param threads 最多同时发起多少个请求
+     * @param mergeGap 同一个文件里两段元数据之间的空隙不超过这么多字节时合并成一个请求，小于0时不合并
+     */
+    public MetadataFetcher(Servers server, List<VersionIndex> versions, int threads, long mergeGap) {
+        this.server = server;
+        this.versions = versions;
+
+        results = new ArrayList<>(Collections.nCopies(versions.size(), null));
+        positions = new int[versions.size()];
+
+        // 按文件分组，保持文件第一次出现时的顺序
+        LinkedHashMap<String, List<Integer>> files = new LinkedHashMap<>();
+
+        for (int i = 0; i < versions.size(); i++)
+            files.computeIfAbsent(versions.get(i).filename, k -> new ArrayList<>()).add(i);
+
+        List<List<Integer>> requests = new ArrayList<>();
+
+        for (List<Integer> indices : files.values()) {
+            indices.sort(Comparator.comparingLong(i -> versions.get(i).offset));
+
+            List<Integer> current = null;
+            long start = 0;
+            long end = 0;
+
+            for (int i : indices) {
+                VersionIndex ver = versions.get(i);
+
+                boolean merge = current != null
+                        && mergeGap >= 0
+                        && ver.offset >= end
+                        && ver.offset - end <= mergeGap
+                        && ver.offset + ver.len - start <= maxRequestSize;
+
+                if (!merge) {
+                    current = new ArrayList<>();
+                    requests.add(current);
+                    start = ver.offset;
+                }
+
+                current.add(i);
+                end = ver.offset + ver.len;
+            }
+        }
+
+        // 靠前的版本先下载，这样按顺序取出时等待的时间更短，解析时也能更早发现重复的版本
+        requests.sort(Comparator.comparingInt(request -> Collections.min(request)));
+
+        requestCount = requests.size();
+
+        pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, requests.size())));
+
+        for (List<Integer> request : requests) {
+            Future<List<List<VersionMeta>>> future = pool.submit(() -> fetch(request));
+
+            for (int k = 0; k < request.size(); k++) {
+                results.set(request.get(k), future);
+                positions[request.get(k)] = k;
+            }
+        }
+    }
+
+    /**
+     * 下载一个请求里的所有元数据，边下载边解析
+     *
+     * @param request 这个请求包含的版本，按偏移值从小到大排列
+     * @return 每个版本解析出来的元数据，顺序和 request 一致
+     */
+    List<List<VersionMeta>> fetch(List<Integer> request) throws McpatchBusinessException {
+        VersionIndex first = versions.get(request.get(0));
+        VersionIndex last = versions.get(request.get(request.size() - 1));
+
+        Range range = new Range(first.offset, last.offset + last.len);
+        String desc = request.size() == 1 ? "metadata of " + first.label : String.format("metadata of %s..%s", first.label, last.label);
+
+        // 每个版本一个解析器，按字节位置把下载到的数据分给对应的解析器
+        VersionMetaParser[] parsers = new VersionMetaParser[request.size()];
+        long[] starts = new long[request.size()];
+        long[] lengths = new long[request.size()];
+
+        for (int k = 0; k < request.size(); k++) {
+            int index = request.get(k);
+
+            parsers[k] = new VersionMetaParser(label -> claim(label, index), paths);
+            starts[k] = versions.get(index).offset - range.start;
+            lengths[k] = versions.get(index).len;
+        }
+
+        Dispatcher dispatcher = new Dispatcher(parsers, starts, lengths, range.len(), desc);
+
+        try {
+            server.downloadStream(first.filename, range, desc, resumeFrom -> {
+                // 解析器没法回退，只能从上次中断的位置接着写
+                if (resumeFrom != dispatcher.position)
+                    throw new IOException(String.format("元数据无法从第 %d 字节继续下载: %s", resumeFrom, desc));
+
+                return dispatcher;
+            }, (packageLength, bytesReceived, lengthExpected) -> {}, null);
+        } catch (McpatchBusinessException e) {
+            throw new McpatchBusinessException("元数据下载失败", e);
+        }
+
+        List<List<VersionMeta>> metas = new ArrayList<>();
+
+        for (int k = 0; k < request.size(); k++) {
+            try {
+                metas.add(parsers[k].finish());
+            } catch (McpatchBusinessException e) {
+                throw new McpatchBusinessException("元数据解码失败: " + versions.get(request.get(k)).label, e);
+            }
+
+            skipped.addAndGet(parsers[k].getSkipped());
+        }
+
+        return metas;
+    }
+
+    /**
+     * 某个版本的元数据里读到了一个 label，判断是不是需要这个版本<p>
+     * 只有确定按版本顺序在它前面已经出现过同一个 label 时才跳过：要么是更早的版本里出现过，要么是同一个版本里更靠前的位置出现过。
+     * 其它情况下的重复（后面的版本先下载完）仍然需要在按顺序取出时去重
+     *
+     * @param label 版本号
+     * @param index 这个 label 出现在第几个版本的元数据里
+     */
+    synchronized boolean claim(String label, int index) {
+        Integer seen = firstSeen.get(label);
+
+        if (seen != null && seen <= index)
+            return false;
+
+        firstSeen.put(label, index);
+
+        return true;
+    }
+
+    /**
+     * 取出第几个版本的元数据，还没下载完时会等待
+     */
+    public List<VersionMeta> get(int index) throws McpatchBusinessException, InterruptedException {
+        try {
+            return results.get(index).get().get(positions[index]);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof McpatchBusinessException)
+                throw (McpatchBusinessException) cause;
+
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw new McpatchBusinessException("元数据下载失败", (Exception) cause);
+        }
+    }
+
+    /**
+     * 获取解析时一共跳过了多少个重复的版本，需要在所有版本都取出之后调用
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * 把合并下载的数据按字节位置分给每个版本的解析器，版本之间的空隙直接丢弃
+     */
+    static class Dispatcher extends OutputStream {
+        VersionMetaParser[] parsers;
+
+        /**
+         * 每个版本的元数据的起始位置和长度，相对于请求范围的开头
+         */
+        long[] starts;
+        long[] lengths;
+
+        /**
+         * 请求的总字节数
+         */
+        long total;
+
+        String desc;
+
+        /**
+         * 已经写入的字节数
+         */
+        long position = 0;
+
+        /**
+         * 当前写到了第几个版本
+         */
+        int cursor = 0;
+
+        Dispatcher(VersionMetaParser[] parsers, long[] starts, long[] lengths, long total, String desc) {
+            this.parsers = parsers;
+            this.starts = starts;
+            this.lengths = lengths;
+            this.total = total;
+            this.desc = desc;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > total - position)
+                throw new IOException("服务器返回的元数据比请求的范围更长: " + desc);
+
+            long end = position + len;
+
+            while (cursor < parsers.length && starts[cursor] < end) {
+                long verEnd = starts[cursor] + lengths[cursor];
+                long from = Math.max(position, starts[cursor]);
+                long to = Math.min(end, verEnd);
+
+                if (from < to)
+                    parsers[cursor].write(b, off + (int) (from - position), (int) (to - from));
+
+                // 这个版本的数据还没写完，等下一次写入
+                if (to < verEnd)
+                    break;
+
+                cursor += 1;
+            }
+
+            position = end;
+        }
+
+        @Override
+        public void close() { }
+    }
+
+    /**
+     * 获取一共发起了多少个请求
+     */
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,386 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.ChangeList;
+import com.github.balloonupdate.mcpatch.client.data.PathTable;
+import com.github.balloonupdate.mcpatch.client.data.TempMoveFile;
+import com.github.balloonupdate.mcpatch.client.data.TempUpdateFile;
+import com.github.balloonupdate.mcpatch.client.data.TempVersionMeta;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 用多个线程合并多个版本的文件变动，结果和 ChangeSet 按版本顺序逐个合并完全一样，包括列表里元素的顺序和重复的元素<p>
+ * 只有路径相同的文件变动才会互相影响，移动文件又会把 from 和 to 两个路径关联起来，所以先按路径把所有文件变动分成互不相关的组，
+ * 每组交给一个 ChangeSet 按原来的顺序单独合并。合并结果只记录留下来的文件变动的编号，编号的大小顺序就是按版本顺序合并时的添加顺序，
+ * 各组的结果再像归并排序一样两两合并成有序的列表，最后才创建路径和 TempUpdateFile 等对象<p>
+ * 所有版本需要共用同一张路径表，这样才能直接按路径编号分组
+ */
+public class ParallelChangeMerger {
+    /**
+     * 文件变动的总数达到这么多时才使用多个线程合并，数量少时分组和调度的开销比合并本身还大
+     */
+    public static final int THRESHOLD = 20000;
+
+    /**
+     * 所有要合并的版本，按从旧到新的顺序排列
+     */
+    List<TempVersionMeta> metas;
+
+    /**
+     * 临时文件夹，用来计算临时文件的存放位置
+     */
+    Path tempDir;
+
+    /**
+     * 所有文件变动的编号，同一组的排在一起，组内按编号从小到大排列
+     */
+    long[] rows;
+
+    /**
+     * 每一组在 rows 里的起始位置，最后多一个 rows 的长度
+     */
+    int[] groupStarts;
+
+    /**
+     * 使用的线程数
+     */
+    int threads;
+
+    /**
+     * 一个任务里的文件变动不超过这么多时，不再继续拆分
+     */
+    int leafRows;
+
+    ParallelChangeMerger(List<TempVersionMeta> metas, Path tempDir, int threads) {
+        this.metas = metas;
+        this.tempDir = tempDir;
+        this.threads = threads;
+
+        group();
+
+        leafRows = Math.max(1024, rows.length / (threads * 4));
+    }
+
+    /**
+     * 判断能不能、值不值得使用多个线程合并
+     */
+    public static boolean canMerge(List<TempVersionMeta> metas) {
+        PathTable paths = null;
+        long total = 0;
+
+        for (TempVersionMeta meta : metas) {
+            ChangeList changes = meta.metadata.changes;
+
+            if (paths == null)
+                paths = changes.getPaths();
+            else if (changes.getPaths() != paths)
+                return false;
+
+            total += changes.size();
+        }
+
+        return total >= THRESHOLD;
+    }
+
+    /**
+     * 使用多个线程合并所有版本的文件变动，收集到各个列表里。调用前需要先用 canMerge() 检查
+     *
+     * @param metas 所有要更新的版本，需要按从旧到新的顺序排列
+     * @param tempDir 临时文件夹，用来计算临时文件的存放位置
+     * @param threads 使用的线程数
+     */
+    public static void merge(
+            List<TempVersionMeta> metas,
+            Path tempDir,
+            int threads,
+            ArrayList<String> createFolders,
+            ArrayList<TempUpdateFile> updateFiles,
+            ArrayList<String> deleteFolders,
+            ArrayList<String> deleteFiles,
+            ArrayList<TempMoveFile> moveFiles
+    ) {
+        new ParallelChangeMerger(metas, tempDir, threads).collect(createFolders, updateFiles, deleteFolders, deleteFiles, moveFiles);
+    }
+
+    void collect(
+            ArrayList<String> createFolders,
+            ArrayList<TempUpdateFile> updateFiles,
+            ArrayList<String> deleteFolders,
+            ArrayList<String> deleteFiles,
+            ArrayList<TempMoveFile> moveFiles
+    ) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Part result;
+
+        try {
+            result = pool.submit(new MergeTask(this, 0, groupStarts.length - 1)).get();
+        } catch (ExecutionException e) {
+            // 把断言失败等异常原样抛出去，和按版本顺序合并时一样。
+            // 子任务在别的线程上失败时，ForkJoinTask 会创建一个同类型的异常把原来的异常包在里面，这里要拆开
+            Throwable cause = e.getCause();
+
+            while (cause.getCause() != null && cause.getCause().getClass() == cause.getClass())
+                cause = cause.getCause();
+
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // 按编号创建最终的对象
+        ChangeSet changeSet = new ChangeSet(tempDir);
+        changeSet.metas = metas;
+
+        for (long seq : result.createFolders)
+            createFolders.add(changes(seq).path((int) seq));
+
+        for (long seq : result.updateFiles) {
+            String path = result.movedUpdates.get(seq);
+
+            updateFiles.add(changeSet.createUpdateFile(seq, path != null ? path : changes(seq).path((int) seq)));
+        }
+
+        for (long seq : result.deleteFolders)
+            deleteFolders.add(changes(seq).path((int) seq));
+
+        for (long seq : result.deleteFiles)
+            deleteFiles.add(changes(seq).path((int) seq));
+
+        for (long seq : result.moveFiles) {
+            ChangeList changes = changes(seq);
+
+            moveFiles.add(new TempMoveFile(changes.path((int) seq), changes.target((int) seq)));
+        }
+    }
+
+    /**
+     * 获取文件变动的编号所在的版本的文件变动列表
+     */
+    ChangeList changes(long seq) {
+        return metas.get((int) (seq >>> 32)).metadata.changes;
+    }
+
+    /**
+     * 按路径给所有文件变动分组，移动文件的 from 和 to 归到同一组
+     */
+    void group() {
+        int pathCount = metas.isEmpty() ? 0 : metas.get(0).metadata.changes.getPaths().size();
+
+        // 用并查集把移动文件关联起来的路径合到一起
+        int[] parent = new int[pathCount];
+
+        for (int i = 0; i < pathCount; i++)
+            parent[i] = i;
+
+        for (TempVersionMeta meta : metas) {
+            ChangeList changes = meta.metadata.changes;
+
+            for (int i = 0; i < changes.size(); i++) {
+                if (changes.kind(i) == ChangeList.MOVE_FILE) {
+                    int a = find(parent, changes.pathId(i));
+                    int b = find(parent, changes.targetId(i));
+
+                    if (a != b)
+                        parent[a] = b;
+                }
+            }
+        }
+
+        // 给每个组分配序号，统计每组有多少个文件变动
+        int[] groupOf = new int[pathCount];
+        int[] counts = new int[pathCount + 1];
+        int groups = 0;
+        int total = 0;
+
+        Arrays.fill(groupOf, -1);
+
+        for (TempVersionMeta meta : metas) {
+            ChangeList changes = meta.metadata.changes;
+
+            for (int i = 0; i < changes.size(); i++) {
+                int root = find(parent, changes.pathId(i));
+
+                if (groupOf[root] < 0)
+                    groupOf[root] = groups++;
+
+                counts[groupOf[root]] += 1;
+                total += 1;
+            }
+        }
+
+        groupStarts = new int[groups + 1];
+
+        for (int g = 0; g < groups; g++)
+            groupStarts[g + 1] = groupStarts[g] + counts[g];
+
+        // 按版本顺序放进各组，组内自然就是按编号排列的
+        int[] cursors = Arrays.copyOf(groupStarts, groups);
+        rows = new long[total];
+
+        for (int version = 0; version < metas.size(); version++) {
+            ChangeList changes = metas.get(version).metadata.changes;
+
+            for (int i = 0; i < changes.size(); i++) {
+                int g = groupOf[find(parent, changes.pathId(i))];
+
+                rows[cursors[g]++] = ChangeSet.seq(version, i);
+            }
+        }
+    }
+
+    static int find(int[] parent, int x) {
+        while (parent[x] != x) {
+            parent[x] = parent[parent[x]];
+            x = parent[x];
+        }
+
+        return x;
+    }
+
+    /**
+     * 合并一段连续的组，太大时拆成两半分别合并
+     */
+    static class MergeTask extends RecursiveTask<Part> {
+        private static final long serialVersionUID = 1L;
+
+        ParallelChangeMerger merger;
+        int from;
+        int to;
+
+        MergeTask(ParallelChangeMerger merger, int from, int to) {
+            this.merger = merger;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Part compute() {
+            int[] groupStarts = merger.groupStarts;
+            int count = groupStarts[to] - groupStarts[from];
+
+            if (to - from <= 1 || count <= merger.leafRows)
+                return merger.mergeGroups(from, to);
+
+            // 按文件变动的数量从中间拆开
+            int mid = Arrays.binarySearch(groupStarts, from, to, groupStarts[from] + count / 2);
+
+            if (mid < 0)
+                mid = -mid - 1;
+
+            mid = Math.max(from + 1, Math.min(to - 1, mid));
+
+            MergeTask left = new MergeTask(merger, from, mid);
+            left.fork();
+
+            Part right = new MergeTask(merger, mid, to).compute();
+
+            return Part.combine(left.join(), right);
+        }
+    }
+
+    /**
+     * 按顺序合并一段连续的组里的文件变动
+     */
+    Part mergeGroups(int from, int to) {
+        ChangeSet changeSet = new ChangeSet(tempDir);
+        changeSet.metas = metas;
+
+        for (int k = groupStarts[from]; k < groupStarts[to]; k++)
+            changeSet.apply((int) (rows[k] >>> 32), (int) rows[k]);
+
+        Part part = new Part();
+
+        part.createFolders = sorted(changeSet.createFolders.liveSeqs());
+        part.updateFiles = sorted(changeSet.updateFiles.liveSeqs());
+        part.deleteFolders = sorted(changeSet.deleteFolders.liveSeqs());
+        part.deleteFiles = sorted(changeSet.deleteFiles.liveSeqs());
+        part.moveFiles = sorted(Arrays.copyOf(changeSet.moveSeqs, changeSet.moveFiles.size()));
+
+        // 记下被移动过的要下载的文件的现在路径
+        ChangeSet.IndexedList updates = changeSet.updateFiles;
+
+        for (int slot = 0; slot < updates.keys.size(); slot++) {
+            String path = updates.keys.get(slot);
+            long seq = updates.seqs[slot];
+
+            if (path != null && !path.equals(changes(seq).path((int) seq)))
+                part.movedUpdates.put(seq, path);
+        }
+
+        return part;
+    }
+
+    static long[] sorted(long[] seqs) {
+        Arrays.sort(seqs);
+
+        return seqs;
+    }
+
+    /**
+     * 一段组的合并结果，每个列表是留下来的文件变动的编号，从小到大排列
+     */
+    static class Part {
+        long[] createFolders;
+        long[] updateFiles;
+        long[] deleteFolders;
+        long[] deleteFiles;
+        long[] moveFiles;
+
+        /**
+         * 被移动过的要下载的文件的现在路径
+         */
+        HashMap<Long, String> movedUpdates = new HashMap<>();
+
+        /**
+         * 合并两段组的结果。不同组之间互不影响，直接按编号归并就是按版本顺序合并时的结果
+         */
+        static Part combine(Part a, Part b) {
+            Part part = new Part();
+
+            part.createFolders = combine(a.createFolders, b.createFolders);
+            part.updateFiles = combine(a.updateFiles, b.updateFiles);
+            part.deleteFolders = combine(a.deleteFolders, b.deleteFolders);
+            part.deleteFiles = combine(a.deleteFiles, b.deleteFiles);
+            part.moveFiles = combine(a.moveFiles, b.moveFiles);
+
+            part.movedUpdates = a.movedUpdates;
+            part.movedUpdates.putAll(b.movedUpdates);
+
+            return part;
+        }
+
+        static long[] combine(long[] a, long[] b) {
+            long[] result = new long[a.length + b.length];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+
+            while (i < a.length && j < b.length)
+                result[k++] = a[i] < b[j] ? a[i++] : b[j++];
+
+            while (i < a.length)
+                result[k++] = a[i++];
+
+            while (j < b.length)
+                result[k++] = b[j++];
+
+            return result;
+        }
+    }
+}
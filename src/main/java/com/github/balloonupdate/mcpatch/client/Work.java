@@ -5,21 +5,31 @@ import com.github.balloonupdate.mcpatch.client.data.*;
 import com.github.balloonupdate.mcpatch.client.exceptions.McpatchBusinessException;
 import com.github.balloonupdate.mcpatch.client.logging.Log;
 import com.github.balloonupdate.mcpatch.client.network.Servers;
+import com.github.balloonupdate.mcpatch.client.network.UpdatingServer;
 import com.github.balloonupdate.mcpatch.client.ui.ChangeLogs;
 import com.github.balloonupdate.mcpatch.client.ui.McPatchWindow;
 import com.github.balloonupdate.mcpatch.client.utils.*;
-import org.json.JSONArray;
-import org.json.JSONException;
 
 import javax.swing.*;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
@@ -71,6 +81,9 @@ public class Work {
         if (window != null && !config.silentMode)
             window.show();
 
+        // 下载和计算校验值时共用的缓冲区最多占用多少内存
+        BufferPool.setCapacity(config.bufferPoolSize);
+
         try(Servers server = new Servers(config)) {
             return run2(server);
         } catch (McpatchBusinessException e) {
@@ -82,7 +95,7 @@ public class Work {
         }
     }
 
-    boolean run2(Servers server) throws IOException, McpatchBusinessException {
+    boolean run2(Servers server) throws IOException, McpatchBusinessException, InterruptedException {
         // 读取当前版本号文件
         Path versionFile = progDir.resolve(config.versionFilePath);
         String currentVersion = !config.testMode && Files.exists(versionFile) ? new String(Files.readAllBytes(versionFile)) : "";
@@ -140,51 +153,39 @@ public class Work {
 //            if (System.currentTimeMillis() > 1)
 //                throw new McpatchBusinessException("" + missingVersions.size());
 
-            // 下载所有更新包元数据
+            // 下载所有更新包元数据。多个版本的元数据同时下载，同一个文件里离得近的合并成一个请求，但仍然按版本顺序依次处理
             ArrayList<TempVersionMeta> versionMetas = new ArrayList<>();
-            int counter = 1;
-
-            for (VersionIndex ver : missingVersions) {
-                String tip = String.format("正在下载元数据 %s (%d/%d)", ver.label, counter, missingVersions.size());
 
-                Log.debug(tip);
+            // 已经收集的版本号
+            HashSet<String> collectedLabels = new HashSet<>();
 
-                if (window != null)
-                    window.setLabelText(tip);
+            try (MetadataFetcher fetcher = new MetadataFetcher(server, missingVersions, config.downloadThreads, config.downloadMergeGap)) {
+                Log.debug(String.format("%d 个版本的元数据合并成了 %d 个请求", missingVersions.size(), fetcher.getRequestCount()));
 
-                counter += 1;
+                for (int index = 0; index < missingVersions.size(); index++) {
+                    VersionIndex ver = missingVersions.get(index);
 
-                // 下载元数据
-                Range range = new Range(ver.offset, ver.offset + ver.len);
-                String meta_text;
+                    String tip = String.format("正在下载元数据 %s (%d/%d)", ver.label, index + 1, missingVersions.size());
 
-                try {
-                    meta_text = server.requestText(ver.filename, range, "metadata of " + ver.label);
-                } catch (McpatchBusinessException e) {
-                    throw new McpatchBusinessException("元数据下载失败", e);
-                }
-
-                // 解码元数据
-                JSONArray metas;
-
-                try {
-                    metas = new JSONArray(meta_text);
-                } catch (JSONException e) {
-                    throw new McpatchBusinessException("元数据解码失败", e);
-                }
+                    Log.debug(tip);
 
-                // 避免重复收集元数据
-                // 这是一个历史遗留问题，早期的管理端会重复生成元数据，导致更新包元数据达到数Gb的大小
-                // 后来的版本已经修复了，有问题的更新包也可以通过合并更新包功能来修复
-                // 但早期创建更新包仍然会有这个问题，特别是有很多用户从来没有用过合并功能的，所以在客户端增加一下容错
-                for (int i = 0; i < metas.length(); i++) {
-                    VersionMeta meta = new VersionMeta(metas.getJSONObject(i));
+                    if (window != null)
+                        window.setLabelText(tip);
 
-                    // 去重
-                    if (!versionMetas.stream().anyMatch(e -> e.metadata.label.equals(meta.label))) {
-                        versionMetas.add(new TempVersionMeta(ver.filename, meta));
+                    // 避免重复收集元数据
+                    // 这是一个历史遗留问题，早期的管理端会重复生成元数据，导致更新包元数据达到数Gb的大小
+                    // 后来的版本已经修复了，有问题的更新包也可以通过合并更新包功能来修复
+                    // 但早期创建更新包仍然会有这个问题，特别是有很多用户从来没有用过合并功能的，所以在客户端增加一下容错
+                    // 大部分重复的版本在边下载边解析时就已经跳过了，剩下的在这里按顺序去重
+                    for (VersionMeta meta : fetcher.get(index)) {
+                        if (collectedLabels.add(meta.label)) {
+                            versionMetas.add(new TempVersionMeta(ver.filename, meta));
+                        }
                     }
                 }
+
+                if (fetcher.getSkipped() > 0)
+                    Log.debug(String.format("解析元数据时跳过了 %d 个重复的版本", fetcher.getSkipped()));
             }
 
             // 定位临时目录
@@ -202,81 +203,9 @@ public class Work {
             if (window != null)
                 window.setLabelText("正在收集要更新的文件");
 
-            for (TempVersionMeta meta : versionMetas) {
-                for (FileChange change : meta.metadata.changes) {
-                    if (change instanceof FileChange.CreateFolder) {
-                        FileChange.CreateFolder op = (FileChange.CreateFolder) change;
-
-                        RuntimeAssert.isTrue(!createFolders.contains(op.path));
-
-                        // 先删除 deleteFolders 里的文件夹。没有的话，再加入 createFolders 里面
-                        if (deleteFolders.stream().anyMatch(e -> e.equals(op.path))) {
-                            deleteFolders.remove(op.path);
-                        } else {
-                            createFolders.add(op.path);
-                        }
-                    }
-
-                    if (change instanceof FileChange.UpdateFile) {
-                        FileChange.UpdateFile op = (FileChange.UpdateFile) change;
-
-                        // 删除已有的东西，避免下面重复添加报错
-                        updateFiles.removeIf(e -> e.path.equals(op.path));
-
-                        // 将文件从删除列表里移除
-                        deleteFiles.remove(op.path);
-
-                        // 收集起来
-                        Path tempPath = tempDir.resolve(op.path + ".temp");
-                        updateFiles.add(new TempUpdateFile(meta.filename, meta.metadata.label, op, tempPath));
-                    }
-
-                    if (change instanceof FileChange.DeleteFolder) {
-                        FileChange.DeleteFolder op = (FileChange.DeleteFolder) change;
-
-                        // 先删除 createFolders 里的文件夹。没有的话，再加入 deleteFolders 里面
-                        if (createFolders.contains(op.path)) {
-                            createFolders.remove(op.path);
-                        } else {
-                            deleteFolders.add(op.path);
-                        }
-                    }
-
-                    if (change instanceof FileChange.DeleteFile) {
-                        FileChange.DeleteFile op = (FileChange.DeleteFile) change;
-
-                        // 处理那些刚下载又马上要被删的文件，这些文件不用重复下载
-                        if (updateFiles.stream().anyMatch(e -> e.path.equals(op.path))) {
-                            updateFiles.removeIf(e -> e.path.equals(op.path));
-                        }
-
-                        deleteFiles.add(op.path);
-                    }
-
-                    if (change instanceof FileChange.MoveFile) {
-                        FileChange.MoveFile op = (FileChange.MoveFile) change;
-
-                        // 单独处理还没有下载的文件
-                        Optional<TempUpdateFile> find = updateFiles.stream()
-                                .filter(e -> e.path.equals(op.from))
-                                .findFirst();
-
-                        if (find.isPresent()) {
-                            // 不能和别人的to冲突了
-                            RuntimeAssert.isTrue(!moveFiles.stream().anyMatch(e -> e.to.equals(op.to)));
+            int mergeThreads = config.mergeThreads > 0 ? config.mergeThreads : Math.min(Runtime.getRuntime().availableProcessors(), 8);
 
-                            // 更新下载路径
-                            find.get().path = op.to;
-
-                        } else {
-                            // 不能和别人的from或者to冲突了
-                            RuntimeAssert.isTrue(!moveFiles.stream().anyMatch(e -> e.from.equals(op.from) || e.to.equals(op.to)));
-
-                            moveFiles.add(new TempMoveFile(op.from, op.to));
-                        }
-                    }
-                }
-            }
+            collectChanges(versionMetas, tempDir, mergeThreads, createFolders, updateFiles, deleteFolders, deleteFiles, moveFiles);
 
             // 过滤一些不安全行为
             // 1.不能更新自己
@@ -311,60 +240,51 @@ public class Work {
                 }
             }
 
-            // 尽可能跳过要下载的文件
-            for (int i = updateFiles.size() - 1; i >= 0; i--) {
-                if (config.testMode)
-                    break;
+            // 提前检查一遍校验算法，避免下载到一半才发现有不支持的算法
+            for (TempUpdateFile f : updateFiles)
+                getHashAlgorithm(f);
 
-                TempUpdateFile f = updateFiles.get(i);
+            // 尽可能跳过要下载的文件，每个文件的检查互不影响，所以放到多个线程上同时进行
+            if (!config.testMode && !updateFiles.isEmpty()) {
+                int threads = config.verifyThreads > 0 ? config.verifyThreads : Math.min(Runtime.getRuntime().availableProcessors(), 8);
 
-                Path targetPath = baseDir.resolve(f.path);
+                ForkJoinPool pool = new ForkJoinPool(threads);
 
-                // 检查一下看能不能跳过下载
-                // 1.如果不存在的话，肯定跳过不了
-                if (!Files.exists(targetPath)) {
-                    continue;
-                }
-
-                // 获取元数据，准备进一步判断
-                FileTime mtime;
+                // 记录每个文件能否跳过，下标和 updateFiles 一一对应
+                boolean[] skippable = new boolean[updateFiles.size()];
 
                 try {
-                    mtime = Files.getLastModifiedTime(targetPath);
-                } catch (IOException ex) {
-                    throw new McpatchBusinessException("获取文件修改时间失败 " + targetPath, ex);
-                }
-
-                // 2.判断文件时间
-                long timeDiff = (mtime.toMillis() / 1000 - f.modified);
+                    List<ForkJoinTask<?>> tasks = new ArrayList<>();
 
-//                Log.debug(f.path + " : " + timeDiff);
+                    for (int i = 0; i < updateFiles.size(); i++) {
+                        int index = i;
+                        TempUpdateFile f = updateFiles.get(i);
 
-                if (timeDiff < 5) {
-                    continue;
-                }
-
-                // 3.对比hash
-                String hash;
+                        tasks.add(pool.submit(() -> {
+                            skippable[index] = canSkipDownload(f);
+                            return null;
+                        }));
+                    }
 
-                if (window != null)
-                    window.setLabelSecondaryText(PathUtility.getFilename(f.path));
+                    for (ForkJoinTask<?> task : tasks)
+                        task.get();
+                } catch (ExecutionException e) {
+                    rethrowCause(e, "校验文件时遇到问题");
+                } finally {
+                    pool.shutdownNow();
 
-                try {
-                    hash = HashUtility.calculateHash(targetPath);
-                } catch (IOException ex) {
-                    throw new McpatchBusinessException("计算文件hash时遇到问题", ex);
+                    Log.debug(BufferPool.getUsage());
                 }
 
-                if (!hash.equals(f.hash)) {
-                    continue;
-                }
+                // 按原来的顺序剔除可以跳过的文件，保证结果和线程的执行顺序无关
+                ArrayList<TempUpdateFile> remains = new ArrayList<>();
 
-                // 顺便修复文件修改时间
-                Files.setLastModifiedTime(targetPath, FileTime.from(f.modified, TimeUnit.SECONDS));
+                for (int i = 0; i < updateFiles.size(); i++) {
+                    if (!skippable[i])
+                        remains.add(updateFiles.get(i));
+                }
 
-                // 执行到这里的就是可以跳过的了
-                updateFiles.remove(i);
+                updateFiles = remains;
             }
 
             // 清空文字
@@ -380,23 +300,13 @@ public class Work {
                     createFolders.remove(i);
             }
 
-            // 尽可能跳过要删除的文件
-            for (int i = deleteFiles.size() - 1; i >= 0; i--) {
-                String f = deleteFiles.get(i);
-                Path path = baseDir.resolve(f);
-
-                if (!Files.exists(path))
-                    deleteFiles.remove(i);
-            }
+            // 尽可能跳过要删除的文件和目录。已经不存在的目录里的东西不需要一个个检查，从里面移出去的文件也一起去掉
+            DeletePlanner deletePlanner = new DeletePlanner(baseDir);
 
-            // 尽可能跳过要删除的目录
-            for (int i = deleteFolders.size() - 1; i >= 0; i--) {
-                String f = deleteFolders.get(i);
-                Path path = baseDir.resolve(f);
+            deletePlanner.plan(createFolders, updateFiles, deleteFolders, deleteFiles, moveFiles);
 
-                if (!Files.exists(path))
-                    deleteFolders.remove(i);
-            }
+            if (deletePlanner.getSkipped() > 0)
+                Log.debug(String.format("%d 个要删除的路径和移动文件在已经不存在的目录里，不需要检查", deletePlanner.getSkipped()));
 
 
             // 准备开始下载更新数据
@@ -405,81 +315,92 @@ public class Work {
             if (window != null)
                 window.setLabelText("下载更新数据");
 
-            AtomicLong totalDownloaded = new AtomicLong();
+            // 读取上次留下的下载日志，上次已经下载并校验好的临时文件直接使用，不需要再下载一遍
+            DownloadJournal journal = new DownloadJournal(tempDir.resolve(".download-journal.json"), latestVersion);
 
-            long totalBytes = updateFiles.stream().mapToLong(updateFile -> updateFile.length).sum();
+            journal.load();
 
-            SpeedStat speed = new SpeedStat(1500);
-            AtomicLong uiTimer = new AtomicLong(System.currentTimeMillis() - 600);
+            List<TempUpdateFile> downloadFiles = updateFiles.stream().filter(f -> !journal.isCompleted(f)).collect(Collectors.toList());
 
-            // 1.下载到临时文件
-            if (window != null) {
-                window.setLabelText("准备开始下载文件");
-            }
+            if (downloadFiles.size() < updateFiles.size())
+                Log.info(String.format("上次已经下载好了 %d 个文件，不需要重新下载", updateFiles.size() - downloadFiles.size()));
 
-            for (TempUpdateFile f : updateFiles) {
-                String filename = PathUtility.getFilename(f.path);
+            // 同一个更新包里位置相近的文件合并成一个请求下载，离得远的小文件在服务器支持时合并成多范围请求
+            int batchRanges = server.supportsMultipleRanges() ? config.downloadBatchRanges : 0;
 
-                Log.debug("  a.开始下载 " + f.tempPath);
+            List<DownloadGroup> groups = new DownloadPlanner(config.downloadMergeGap, config.downloadMergeRatio, batchRanges).plan(downloadFiles);
 
-                Path tempDirectory = f.tempPath.getParent();
-                Files.createDirectories(tempDirectory);
+            Log.debug(String.format("%d 个文件合并成了 %d 个下载请求", downloadFiles.size(), groups.size()));
 
-                    // 空文件不需要下载
-                    if (f.length == 0) {
-                        Files.createFile(f.tempPath);
-                        break;
-                    }
+            // 文件之间的空隙也要下载，所以按请求的范围来统计总进度
+            long totalBytes = groups.stream().mapToLong(DownloadGroup::partsLength).sum();
 
-                    // 展示即将要开始下载内容
-                    if (window != null) {
-                        window.setProgressBarValue((int) (totalDownloaded.get() / (float) totalBytes * 1000));
-                        window.setLabelSecondaryText(filename);
-                        window.setLabelText(String.format("正在下载 %s 版本", f.label));
-                    }
+            DownloadProgress progress = new DownloadProgress(window, totalBytes);
 
-                    AtomicLong bytesCounter = new AtomicLong();
+            // 1.下载到临时文件
+            if (window != null) {
+                window.setLabelText("准备开始下载文件");
+            }
 
-                    Range range = new Range(f.offset, f.offset + f.length);
-                    String desc = f.path + " in " + f.label;
+            // 文件很多时大部分时间都花在等待服务器响应上，所以多个文件同时下载。
+            // 同时下载的数量会根据实测的网速自动调整，私有协议只有一条连接，不需要调整
+            if (!groups.isEmpty()) {
+                int maxThreads = server.supportsConcurrentRequests() ? config.downloadThreadsMax : config.downloadThreads;
 
-                    server.downloadFile(f.containerName, range, desc, f.tempPath, (packageLength, bytesReceived, lengthExpected) -> {
-                        // 计数
-                        bytesCounter.addAndGet(packageLength);
-                        totalDownloaded.addAndGet(packageLength);
-                        speed.feed(packageLength);
+                ConcurrencyController controller = new ConcurrencyController(config.downloadThreads, maxThreads, progress);
 
-                        // 更新UI
-                        if (window != null) {
-                            long now2 = System.currentTimeMillis();
+                int threads = Math.max(1, Math.min(Math.max(config.downloadThreads, maxThreads), groups.size()));
 
-                            if (now2 - uiTimer.get() > 300) {
-                                uiTimer.set(now2);
+                ExecutorService pool = Executors.newFixedThreadPool(threads);
+                ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(pool);
 
-                                window.setProgressBarText(String.format("%s/%s  -  %s/s", BytesUtils.convertBytes(totalDownloaded.get()), BytesUtils.convertBytes(totalBytes), speed.sampleSpeed2()));
-                                window.setProgressBarValue((int) (totalDownloaded.get() / (float) totalBytes * 1000));
+                try {
+                    for (DownloadGroup g : groups) {
+                        completion.submit(() -> {
+                            controller.acquire();
+
+                            try {
+                                if (g.files.size() == 1)
+                                    downloadTempFile(server, g.files.get(0), progress, journal);
+                                else
+                                    downloadGroup(server, g, progress, journal);
+                            } finally {
+                                controller.release();
                             }
-                        }
-                    }, (fallback) -> {
-                        // 进度回退
-                        totalDownloaded.addAndGet(-bytesCounter.get());
 
-                        if (window != null) {
-                            window.setProgressBarText(String.format("%s/%s  -  %s/s", BytesUtils.convertBytes(totalDownloaded.get()), BytesUtils.convertBytes(totalBytes), speed.sampleSpeed2()));
-                            window.setProgressBarValue((int) (totalDownloaded.get() / (float) totalBytes * 1000));
-                        }
-                    });
+                            return null;
+                        });
+                    }
+
+                    // 按完成的先后顺序检查结果，任意一个请求失败了就立即停止其它所有下载。等待的同时定期调整并发数
+                    int finished = 0;
 
-                    // 修复文件 mtime
-                    Files.setLastModifiedTime(f.tempPath, FileTime.from(f.modified, TimeUnit.SECONDS));
+                    while (finished < groups.size()) {
+                        Future<Void> result = completion.poll(500, TimeUnit.MILLISECONDS);
 
+                        if (result != null) {
+                            result.get();
+                            finished += 1;
+                        }
+
+                        controller.update();
+                    }
 
+                    Log.debug(String.format("下载结束时的并发数为 %d，最高达到过 %d", controller.getLimit(), controller.getPeak()));
+                } catch (ExecutionException e) {
+                    rethrowCause(e, "下载文件时遇到问题");
+                } finally {
+                    pool.shutdownNow();
 
-                // 校验文件
-                String hash = HashUtility.calculateHash(f.tempPath);
+                    Log.debug(BufferPool.getUsage());
 
-                if (!hash.equals(f.hash))
-                    throw new McpatchBusinessException(String.format("临时文件校验失败，预期 %s，实际 %s，文件路径 %s", f.hash, hash, f.tempPath.toFile().getAbsolutePath()));
+                    // 不管下载成功与否都保存一下日志，下次启动时可以接着下载。保存失败也不影响更新
+                    try {
+                        journal.save();
+                    } catch (IOException ex) {
+                        Log.warn("下载日志保存失败: " + ex);
+                    }
+                }
             }
 
             if (window != null)
@@ -541,7 +462,7 @@ public class Work {
             }
 
             for (TempUpdateFile f : updateFiles) {
-                Path from = f.tempPath;
+                Path from = f.getTempPath();
                 Path to = baseDir.resolve(f.path);
 
                 Log.debug(String.format("  e.移动临时文件 %s.temp => %s", f.path, f.path));
@@ -613,4 +534,441 @@ public class Work {
 
         return hasUpdate;
     }
-}
+
+
+    /**
+     * 按版本顺序合并所有版本的文件变动，收集到各个列表里。会尽可能剔除掉刚下载又马上要被删的文件
+     *
+     * @param versionMetas 所有要更新的版本，需要按从旧到新的顺序排列
+     * @param tempDir 临时文件夹，用来计算临时文件的存放位置
+     * @param threads 合并时最多使用的线程数，文件变动很少时总是在当前线程上按版本顺序合并
+     */
+    static void collectChanges(
+            List<TempVersionMeta> versionMetas,
+            Path tempDir,
+            int threads,
+            ArrayList<String> createFolders,
+            ArrayList<TempUpdateFile> updateFiles,
+            ArrayList<String> deleteFolders,
+            ArrayList<String> deleteFiles,
+            ArrayList<TempMoveFile> moveFiles
+    ) {
+        if (threads > 1 && ParallelChangeMerger.canMerge(versionMetas)) {
+            ParallelChangeMerger.merge(versionMetas, tempDir, threads, createFolders, updateFiles, deleteFolders, deleteFiles, moveFiles);
+            return;
+        }
+
+        ChangeSet changeSet = new ChangeSet(tempDir);
+
+        for (TempVersionMeta meta : versionMetas)
+            changeSet.add(meta);
+
+        createFolders.addAll(changeSet.getCreateFolders());
+        updateFiles.addAll(changeSet.getUpdateFiles());
+        deleteFolders.addAll(changeSet.getDeleteFolders());
+        deleteFiles.addAll(changeSet.getDeleteFiles());
+        moveFiles.addAll(changeSet.getMoveFiles());
+    }
+
+    /**
+     * 下载一个文件到临时文件里并进行校验。可以在多个线程里同时调用
+     */
+    void downloadTempFile(Servers server, TempUpdateFile f, DownloadProgress progress, DownloadJournal journal) throws IOException, McpatchBusinessException, InterruptedException {
+        String filename = PathUtility.getFilename(f.path);
+        Path tempPath = f.getTempPath();
+
+        Log.debug("  a.开始下载 " + tempPath);
+
+        Path tempDirectory = tempPath.getParent();
+        Files.createDirectories(tempDirectory);
+
+        // 空文件不需要下载。上次可能留下了同名的临时文件，直接覆盖掉
+        if (f.length == 0) {
+            Files.write(tempPath, new byte[0]);
+            Files.setLastModifiedTime(tempPath, FileTime.from(f.modified, TimeUnit.SECONDS));
+            journal.complete(f);
+            return;
+        }
+
+        // 展示即将要开始下载内容
+        if (window != null) {
+            window.setLabelSecondaryText(filename);
+            window.setLabelText(String.format("正在下载 %s 版本", f.label));
+        }
+
+        // 大文件拆成多段，通过多个连接同时下载
+        if (config.downloadSegments > 1 && f.length > config.downloadSegmentSize && server.supportsConcurrentRequests()) {
+            String hash = downloadSegmented(server, f, progress, journal);
+
+            verifyTempFile(f, hash, journal);
+            return;
+        }
+
+        String desc = f.path + " in " + f.label;
+
+        // 边下载边计算校验值，下载完成后就不需要再把临时文件读一遍了
+        FileHasher hasher = HashUtility.acquireHasher(getHashAlgorithm(f));
+
+        try {
+            // 上次启动时下载了一部分的话，从中断的位置继续下载
+            long position = resumePartial(f, hasher, journal);
+
+            if (position > 0) {
+                Log.debug(String.format("  a.从第 %d 字节继续下载 %s", position, tempPath));
+
+                progress.skip(position);
+            }
+
+            // 这个文件已经计入总进度的字节数，下载失败时只回退这一部分，不影响其它同时在下载的文件
+            AtomicLong bytesCounter = new AtomicLong(position);
+
+            if (position < f.length) {
+                Range range = new Range(f.offset + position, f.offset + f.length);
+
+                server.downloadFile(f.containerName, range, desc, tempPath, position, hasher, (packageLength, bytesReceived, lengthExpected) -> {
+                    bytesCounter.addAndGet(packageLength);
+                    progress.feed(packageLength);
+
+                    // 进度是在数据写入之后才报告的，记录下来的位置之前的数据一定已经在文件里了
+                    journal.progress(f, f.length, 1, 0, position + bytesReceived);
+                }, (fallback) -> {
+                    // 进度回退，已经写入的部分重试时会继续使用，不需要回退
+                    bytesCounter.addAndGet(-fallback);
+                    progress.fallback(fallback);
+                });
+            }
+
+            // 最后一小段数据可能因为降低了报告频率而没有报告过，这里补上，保证总进度和文件大小一致
+            progress.feed(f.length - bytesCounter.getAndSet(f.length));
+
+            verifyTempFile(f, hasher.getHash(), journal);
+        } finally {
+            HashUtility.releaseHasher(hasher);
+        }
+    }
+
+    /**
+     * 查询下载日志，看看上次启动时这个文件下载到了哪里，并把已经下载的这部分数据读一遍算进校验值里
+     *
+     * @return 从第几个字节开始继续下载，需要从头下载时返回0
+     */
+    long resumePartial(TempUpdateFile f, FileHasher hasher, DownloadJournal journal) throws IOException {
+        long[] done = journal.getPartial(f, f.length, 1);
+
+        if (done == null || done[0] <= 0 || !Files.exists(f.getTempPath()))
+            return 0;
+
+        try (FileChannel channel = FileChannel.open(f.getTempPath(), StandardOpenOption.READ)) {
+            // 日志保存之后，重试时文件可能又被截短过，以文件里实际有的数据为准
+            long position = Math.min(done[0], Math.min(channel.size(), f.length));
+
+            hasher.reset();
+            hasher.update(channel, 0, position);
+
+            return position;
+        }
+    }
+
+    /**
+     * 把一个大文件拆成多段，通过多个连接同时下载，每一段直接写入到临时文件里对应的位置上
+     *
+     * @return 临时文件的校验值
+     */
+    String downloadSegmented(Servers server, TempUpdateFile f, DownloadProgress progress, DownloadJournal journal) throws IOException, McpatchBusinessException, InterruptedException {
+        long segmentSize = config.downloadSegmentSize;
+        int count = (int) ((f.length + segmentSize - 1) / segmentSize);
+
+        Log.debug(String.format("  a.分成 %d 段下载 %s", count, f.getTempPath()));
+
+        HashAlgorithm algorithm = getHashAlgorithm(f);
+
+        // 每一段的 crc 可以直接合并起来，其它算法只能等下载完后把整个文件再读一遍
+        boolean combinable = algorithm == HashUtility.defaultAlgorithm;
+        Crc64Crc16Hash.Result[] results = new Crc64Crc16Hash.Result[count];
+
+        String desc = f.path + " in " + f.label;
+
+        // 上次启动时每一段分别下载到了哪里。临时文件的大小不对的话说明被动过了，只能从头下载
+        long[] resumed = journal.getPartial(f, segmentSize, count);
+
+        if (resumed != null && (!Files.exists(f.getTempPath()) || Files.size(f.getTempPath()) != f.length))
+            resumed = null;
+
+        long[] done = resumed != null ? resumed : new long[count];
+
+        if (resumed != null)
+            Log.debug("  a.接着上次的进度继续分段下载 " + f.getTempPath());
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(config.downloadSegments, count));
+        ExecutorCompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+
+        try {
+            StandardOpenOption[] options = resumed != null
+                    ? new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE }
+                    : new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING };
+
+            try (FileChannel channel = FileChannel.open(f.getTempPath(), options)) {
+                // 预先分配好文件大小
+                if (resumed == null)
+                    channel.write(ByteBuffer.wrap(new byte[1]), f.length - 1);
+
+                for (int i = 0; i < count; i++) {
+                    int index = i;
+                    long start = i * segmentSize;
+                    long end = Math.min(start + segmentSize, f.length);
+                    long position = Math.max(0, Math.min(done[i], end - start));
+
+                    completion.submit(() -> {
+                        // 这一段已经计入总进度的字节数，下载失败时只回退这一部分
+                        AtomicLong bytesCounter = new AtomicLong(position);
+
+                        progress.skip(position);
+
+                        FileHasher hasher = combinable ? HashUtility.acquireHasher() : null;
+
+                        try {
+                            // 上次已经下载的部分需要重新算进校验值里
+                            if (hasher != null) {
+                                hasher.reset();
+                                hasher.update(channel, start, start + position);
+                            }
+
+                            if (position < end - start) {
+                                Range range = new Range(f.offset + start + position, f.offset + end);
+
+                                server.downloadStream(f.containerName, range, desc, resumeFrom -> {
+                                    long writeFrom = position + resumeFrom;
+
+                                    ChannelOutputStream output = new ChannelOutputStream(channel, start + writeFrom);
+
+                                    if (hasher == null)
+                                        return output;
+
+                                    // 断点续传时 hasher 里已经包含了前面的数据
+                                    if (writeFrom == 0)
+                                        hasher.reset();
+
+                                    return new HashingOutputStream(output, hasher);
+                                }, (packageLength, bytesReceived, lengthExpected) -> {
+                                    bytesCounter.addAndGet(packageLength);
+                                    progress.feed(packageLength);
+
+                                    journal.progress(f, segmentSize, count, index, position + bytesReceived);
+                                }, (fallback) -> {
+                                    bytesCounter.addAndGet(-fallback);
+                                    progress.fallback(fallback);
+                                });
+                            }
+
+                            progress.feed(end - start - bytesCounter.getAndSet(end - start));
+
+                            // 这一段已经完整写入了，下次启动时不需要再下载
+                            journal.progress(f, segmentSize, count, index, end - start);
+
+                            if (hasher != null)
+                                results[index] = hasher.getResult();
+                        } finally {
+                            if (hasher != null)
+                                HashUtility.releaseHasher(hasher);
+                        }
+
+                        return null;
+                    });
+                }
+
+                // 任意一段失败了就立即停止其它所有段
+                for (int i = 0; i < count; i++)
+                    completion.take().get();
+            }
+        } catch (ExecutionException e) {
+            rethrowCause(e, "分段下载文件时遇到问题");
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (!combinable)
+            return HashUtility.calculateHash(f.getTempPath(), algorithm);
+
+        // 按顺序把每一段的 crc 合并起来
+        Crc64Crc16Hash.Result result = results[0];
+
+        for (int i = 1; i < count; i++)
+            result = result.combine(results[i], Math.min(segmentSize, f.length - i * segmentSize));
+
+        return result.toString();
+    }
+
+    /**
+     * 修复临时文件的修改时间，并检查校验值是否正确。校验通过的文件会记录到下载日志里，校验失败的文件下次需要从头下载
+     *
+     * @param f 要检查的文件
+     * @param hash 临时文件实际的校验值
+     */
+    void verifyTempFile(TempUpdateFile f, String hash, DownloadJournal journal) throws IOException, McpatchBusinessException {
+        // 修复文件 mtime
+        Files.setLastModifiedTime(f.getTempPath(), FileTime.from(f.modified, TimeUnit.SECONDS));
+
+        // 校验文件
+        if (!hash.equals(f.hash)) {
+            journal.discard(f);
+
+            throw new McpatchBusinessException(String.format("临时文件校验失败，预期 %s，实际 %s，文件路径 %s", f.hash, hash, f.getTempPath().toFile().getAbsolutePath()));
+        }
+
+        journal.complete(f);
+    }
+
+    /**
+     * 通过一个请求下载多个位置相邻的文件，拆分到各自的临时文件里并进行校验。可以在多个线程里同时调用
+     */
+    void downloadGroup(Servers server, DownloadGroup group, DownloadProgress progress, DownloadJournal journal) throws IOException, McpatchBusinessException {
+        Log.debug(String.format("  a.开始下载 %d 个文件 %s %d..%d，共 %d 段", group.files.size(), group.containerName, group.range.start, group.range.end, group.parts.size()));
+
+        for (TempUpdateFile f : group.files)
+            Files.createDirectories(f.getTempPath().getParent());
+
+        // 展示即将要开始下载内容
+        if (window != null) {
+            window.setLabelSecondaryText(String.format("%s 等 %d 个文件", PathUtility.getFilename(group.files.get(0).path), group.files.size()));
+            window.setLabelText(String.format("正在下载 %s 版本", group.label));
+        }
+
+        // 这个请求已经计入总进度的字节数，下载失败时只回退这一部分
+        AtomicLong bytesCounter = new AtomicLong();
+
+        String desc = group.files.size() + " files in " + group.label;
+
+        FileHasher hasher = HashUtility.acquireHasher();
+
+        try {
+            // 每个文件写完就记录到下载日志里，请求中途失败的话，下次启动时已经写完的文件不需要重新下载
+            GroupOutputStream output = new GroupOutputStream(group, hasher, (f, hash) -> {
+                if (hash.equals(f.hash)) {
+                    Files.setLastModifiedTime(f.getTempPath(), FileTime.from(f.modified, TimeUnit.SECONDS));
+                    journal.complete(f);
+                }
+            });
+
+            UpdatingServer.OnDownload callback = (packageLength, bytesReceived, lengthExpected) -> {
+                bytesCounter.addAndGet(packageLength);
+                progress.feed(packageLength);
+            };
+
+            UpdatingServer.OnFail fallback = (bytes) -> {
+                // 进度回退，已经写入的部分重试时会继续使用，不需要回退
+                bytesCounter.addAndGet(-bytes);
+                progress.fallback(bytes);
+            };
+
+            // 多段不相邻的数据通过一个多范围请求下载
+            if (group.parts.size() > 1)
+                server.downloadRanges(group.containerName, group.parts, desc, output::open, callback, fallback);
+            else
+                server.downloadStream(group.containerName, group.range, desc, output::open, callback, fallback);
+
+            // 补上没有报告过的最后一小段数据
+            progress.feed(group.partsLength() - bytesCounter.getAndSet(group.partsLength()));
+
+            if (!output.isComplete())
+                throw new McpatchBusinessException(String.format("合并下载的数据不完整，%s %d..%d", group.containerName, group.range.start, group.range.end));
+
+            for (int i = 0; i < group.files.size(); i++)
+                verifyTempFile(group.files.get(i), output.getHash(i), journal);
+        } finally {
+            HashUtility.releaseHasher(hasher);
+        }
+    }
+
+    /**
+     * 把线程池里的任务抛出的异常原样抛出来
+     *
+     * @param e 线程池返回的异常
+     * @param message 遇到预料之外的异常时使用的错误信息
+     */
+    static void rethrowCause(ExecutionException e, String message) throws McpatchBusinessException, IOException {
+        Throwable cause = e.getCause();
+
+        if (cause instanceof McpatchBusinessException)
+            throw (McpatchBusinessException) cause;
+
+        if (cause instanceof IOException)
+            throw (IOException) cause;
+
+        if (cause instanceof Error)
+            throw (Error) cause;
+
+        throw new McpatchBusinessException(message, (Exception) cause);
+    }
+
+    /**
+     * 根据更新包里记录的校验值找到对应的校验算法
+     */
+    static HashAlgorithm getHashAlgorithm(TempUpdateFile f) throws McpatchBusinessException {
+        HashAlgorithm algorithm = HashUtility.getAlgorithm(f.hash);
+
+        if (algorithm == null)
+            throw new McpatchBusinessException("不支持的校验算法: " + f.hash + "，文件路径 " + f.path + "，请更新客户端");
+
+        return algorithm;
+    }
+
+    /**
+     * 检查一个文件能否跳过下载，也就是本地已经有一模一样的文件了。可以在多个线程里同时调用
+     */
+    boolean canSkipDownload(TempUpdateFile f) throws IOException, McpatchBusinessException {
+        Path targetPath = baseDir.resolve(f.path);
+
+        // 检查一下看能不能跳过下载
+        // 1.如果不存在的话，肯定跳过不了
+        if (!Files.exists(targetPath)) {
+            return false;
+        }
+
+        // 获取元数据，准备进一步判断
+        BasicFileAttributes attributes;
+
+        try {
+            attributes = Files.readAttributes(targetPath, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            throw new McpatchBusinessException("获取文件修改时间失败 " + targetPath, ex);
+        }
+
+        FileTime mtime = attributes.lastModifiedTime();
+
+        // 2.判断文件时间
+        long timeDiff = (mtime.toMillis() / 1000 - f.modified);
+
+//        Log.debug(f.path + " : " + timeDiff);
+
+        if (timeDiff < 5) {
+            return false;
+        }
+
+        // 3.判断文件大小，大小不一样的话就不用算hash了
+        if (attributes.size() != f.length) {
+            return false;
+        }
+
+        // 4.对比hash
+        String hash;
+
+        if (window != null)
+            window.setLabelSecondaryText(PathUtility.getFilename(f.path));
+
+        try {
+            hash = HashUtility.calculateHash(targetPath, getHashAlgorithm(f));
+        } catch (IOException ex) {
+            throw new McpatchBusinessException("计算文件hash时遇到问题", ex);
+        }
+
+        if (!hash.equals(f.hash)) {
+            return false;
+        }
+
+        // 顺便修复文件修改时间
+        Files.setLastModifiedTime(targetPath, FileTime.from(f.modified, TimeUnit.SECONDS));
+
+        // 执行到这里的就是可以跳过的了
+        return true;
+    }
+}
\ No newline at end of file
@@ -106,6 +106,61 @@ public class AppConfig {
      */
     public boolean testMode;
 
+    /**
+     * 校验本地文件时使用的线程数，设置为0时会根据CPU核心数自动选择<p>
+     * 固态硬盘上可以适当调大，机械硬盘上建议设置为1，避免多个线程同时读取导致磁头来回寻道
+     */
+    public int verifyThreads;
+
+    /**
+     * 合并各个版本的文件变动时使用的线程数，设置为0时会根据CPU核心数自动选择，设置为1时按版本顺序逐个合并<p>
+     * 文件变动很少时总是按版本顺序逐个合并
+     */
+    public int mergeThreads;
+
+    /**
+     * 同时下载的文件数量，文件很多但都很小时适当调大可以更充分地利用带宽。会自动调整时，这是开始时的数量<p>
+     * 私有协议只有一条连接，多个文件会排队下载，因此调大这个值对私有协议没有效果
+     */
+    public int downloadThreads;
+
+    /**
+     * 同时下载的文件数量的上限。下载过程中会根据实测的网速和失败次数在 1 到这个值之间自动调整，从 downloadThreads 开始。
+     * 不大于 downloadThreads 时不进行调整。私有协议只有一条连接，不会进行调整
+     */
+    public int downloadThreadsMax;
+
+    /**
+     * 同一个更新包里两个文件之间的空隙不超过这么多字节时，合并成一个请求下载，空隙部分的数据会被丢弃<p>
+     * 设置为-1时不进行合并，每个文件单独下载
+     */
+    public int downloadMergeGap;
+
+    /**
+     * 同一个更新包里要下载的数据占比（百分比）达到此值时，不论文件之间的空隙多大都合并下载，设置为0时不启用
+     */
+    public int downloadMergeRatio;
+
+    /**
+     * 大文件分段下载时每一段的大小，超过这个大小的文件会被拆成多段，通过多个连接同时下载
+     */
+    public int downloadSegmentSize;
+
+    /**
+     * 分段下载时一个文件最多同时使用多少个连接，设置为1时不进行分段下载。只对 http 和 webdav 协议有效
+     */
+    public int downloadSegments;
+
+    /**
+     * 一个多范围请求最多包含多少段，离得比较远的小文件会通过一个请求一起下载，设置为1时不使用多范围请求。只对 http 协议有效
+     */
+    public int downloadBatchRanges;
+
+    /**
+     * 下载和计算校验值时使用的缓冲区加起来最多占用多少字节的内存，超出后改用很小的临时缓冲区，速度会慢一些
+     */
+    public int bufferPoolSize;
+
 
     public AppConfig(Map<String, Object> map) {
         List<String> urls = getList(map, "urls", null, new ArrayList<>());
@@ -123,6 +178,16 @@ public class AppConfig {
         int reties = getInt(map, "retries", "http-retries", 3);
         boolean ignoreSSLCertificate = getBoolean(map, "ignore-ssl-cert", "http-ignore-certificate", false);
         boolean testMode = getBoolean(map, "test-mode", null, false);
+        int verifyThreads = getInt(map, "verify-threads", null, 0);
+        int mergeThreads = getInt(map, "merge-threads", null, 0);
+        int downloadThreads = getInt(map, "download-threads", null, 4);
+        int downloadThreadsMax = getInt(map, "download-threads-max", null, 16);
+        int downloadMergeGap = getInt(map, "download-merge-gap", null, 128 * 1024);
+        int downloadMergeRatio = getInt(map, "download-merge-ratio", null, 80);
+        int downloadSegmentSize = getInt(map, "download-segment-size", null, 16 * 1024 * 1024);
+        int downloadSegments = getInt(map, "download-segments", null, 4);
+        int downloadBatchRanges = getInt(map, "download-batch-ranges", null, 32);
+        int bufferPoolSize = getInt(map, "buffer-pool-size", null, 16 * 1024 * 1024);
 
 //        if (urls.contains("webda"))
 //
@@ -142,6 +207,16 @@ public class AppConfig {
         this.reties = reties;
         this.ignoreSSLCertificate = ignoreSSLCertificate;
         this.testMode = testMode;
+        this.verifyThreads = verifyThreads;
+        this.mergeThreads = mergeThreads;
+        this.downloadThreads = downloadThreads;
+        this.downloadThreadsMax = downloadThreadsMax;
+        this.downloadMergeGap = downloadMergeGap;
+        this.downloadMergeRatio = downloadMergeRatio;
+        this.downloadSegmentSize = downloadSegmentSize;
+        this.downloadSegments = downloadSegments;
+        this.downloadBatchRanges = downloadBatchRanges;
+        this.bufferPoolSize = bufferPoolSize;
     }
 
     @SuppressWarnings("unchecked")
@@ -0,0 +1,276 @@
+package com.github.balloonupdate.mcpatch.client.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * 一个版本的文件变动列表，按列存储<p>
+ * 大型更新包可能有几百个版本、十几万个文件变动，如果每个文件变动都是一个对象，再各自带着路径、校验值等字符串，
+ * 在 javaagent 模式下会占用游戏进程几百 MB 的内存。这里每一列是一个数组，路径只保存在 PathTable 里的编号，
+ * 默认算法的校验值拆成 long 和 short 两个数字保存，只有更新文件才有的列单独存放，不给其它种类的变动留位置<p>
+ * 文件变动按添加顺序排列，通过下标访问
+ */
+public class ChangeList {
+    // 文件变动的种类
+    public static final byte CREATE_FOLDER = 0;
+    public static final byte UPDATE_FILE = 1;
+    public static final byte DELETE_FOLDER = 2;
+    public static final byte DELETE_FILE = 3;
+    public static final byte MOVE_FILE = 4;
+
+    /**
+     * 路径表
+     */
+    PathTable paths;
+
+    /**
+     * 文件变动的数量
+     */
+    int size = 0;
+
+    /**
+     * 每个文件变动的种类
+     */
+    byte[] kinds = new byte[16];
+
+    /**
+     * 每个文件变动的路径编号，移动文件时是 from
+     */
+    int[] pathIds = new int[16];
+
+    /**
+     * 更新文件时是在下面这些列里的下标，移动文件时是 to 的路径编号
+     */
+    int[] extras = new int[16];
+
+    /**
+     * 更新文件的数量
+     */
+    int updates = 0;
+
+    /**
+     * 默认算法的校验值的 crc64 部分
+     */
+    long[] crc64s = new long[4];
+
+    /**
+     * 默认算法的校验值的 crc16 部分
+     */
+    short[] crc16s = new short[4];
+
+    /**
+     * 不是默认算法格式的校验值在 otherHashes 里的下标，默认算法时是-1
+     */
+    int[] otherHashIds = new int[4];
+
+    /**
+     * 不是默认算法格式的校验值，比如 xxh3-128:
+     */
+    ArrayList<String> otherHashes = new ArrayList<>();
+
+    long[] lengths = new long[4];
+    long[] modifieds = new long[4];
+    long[] offsets = new long[4];
+
+    public ChangeList(PathTable paths) {
+        this.paths = paths;
+    }
+
+    /**
+     * 在末尾添加一个文件变动
+     */
+    public void add(FileChange change) {
+        if (size == kinds.length) {
+            int capacity = Math.max(16, size * 2);
+
+            kinds = Arrays.copyOf(kinds, capacity);
+            pathIds = Arrays.copyOf(pathIds, capacity);
+            extras = Arrays.copyOf(extras, capacity);
+        }
+
+        if (change instanceof FileChange.CreateFolder) {
+            kinds[size] = CREATE_FOLDER;
+            pathIds[size] = paths.intern(((FileChange.CreateFolder) change).path);
+        } else if (change instanceof FileChange.UpdateFile) {
+            FileChange.UpdateFile op = (FileChange.UpdateFile) change;
+
+            kinds[size] = UPDATE_FILE;
+            pathIds[size] = paths.intern(op.path);
+            extras[size] = addUpdate(op);
+        } else if (change instanceof FileChange.DeleteFolder) {
+            kinds[size] = DELETE_FOLDER;
+            pathIds[size] = paths.intern(((FileChange.DeleteFolder) change).path);
+        } else if (change instanceof FileChange.DeleteFile) {
+            kinds[size] = DELETE_FILE;
+            pathIds[size] = paths.intern(((FileChange.DeleteFile) change).path);
+        } else if (change instanceof FileChange.MoveFile) {
+            FileChange.MoveFile op = (FileChange.MoveFile) change;
+
+            kinds[size] = MOVE_FILE;
+            pathIds[size] = paths.intern(op.from);
+            extras[size] = paths.intern(op.to);
+        } else {
+            return;
+        }
+
+        size += 1;
+    }
+
+    int addUpdate(FileChange.UpdateFile op) {
+        if (updates == crc64s.length) {
+            int capacity = Math.max(4, updates * 2);
+
+            crc64s = Arrays.copyOf(crc64s, capacity);
+            crc16s = Arrays.copyOf(crc16s, capacity);
+            otherHashIds = Arrays.copyOf(otherHashIds, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            modifieds = Arrays.copyOf(modifieds, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+        }
+
+        if (isDefaultHash(op.hash)) {
+            crc64s[updates] = Long.parseUnsignedLong(op.hash.substring(0, 16), 16);
+            crc16s[updates] = (short) Integer.parseInt(op.hash.substring(17), 16);
+            otherHashIds[updates] = -1;
+        } else {
+            otherHashIds[updates] = otherHashes.size();
+            otherHashes.add(op.hash);
+        }
+
+        lengths[updates] = op.len;
+        modifieds[updates] = op.modified;
+        offsets[updates] = op.offset;
+
+        return updates++;
+    }
+
+    /**
+     * 所有文件变动都添加完之后，释放数组里多余的空间
+     */
+    public void trimToSize() {
+        kinds = Arrays.copyOf(kinds, size);
+        pathIds = Arrays.copyOf(pathIds, size);
+        extras = Arrays.copyOf(extras, size);
+
+        crc64s = Arrays.copyOf(crc64s, updates);
+        crc16s = Arrays.copyOf(crc16s, updates);
+        otherHashIds = Arrays.copyOf(otherHashIds, updates);
+        lengths = Arrays.copyOf(lengths, updates);
+        modifieds = Arrays.copyOf(modifieds, updates);
+        offsets = Arrays.copyOf(offsets, updates);
+
+        otherHashes.trimToSize();
+    }
+
+    /**
+     * 是不是默认算法的校验值格式 %016x_%04x，只有小写才能原样还原回来
+     */
+    static boolean isDefaultHash(String hash) {
+        if (hash.length() != 21 || hash.charAt(16) != '_')
+            return false;
+
+        for (int i = 0; i < 21; i++) {
+            char c = hash.charAt(i);
+
+            if (i != 16 && !(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f'))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 文件变动的数量
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 使用的路径表
+     */
+    public PathTable getPaths() {
+        return paths;
+    }
+
+    /**
+     * 第 i 个文件变动的种类
+     */
+    public byte kind(int i) {
+        return kinds[i];
+    }
+
+    /**
+     * 第 i 个文件变动的路径，移动文件时是 from
+     */
+    public String path(int i) {
+        return paths.get(pathIds[i]);
+    }
+
+    /**
+     * 第 i 个文件变动（移动文件）的 to
+     */
+    public String target(int i) {
+        return paths.get(extras[i]);
+    }
+
+    /**
+     * 第 i 个文件变动的路径编号，移动文件时是 from
+     */
+    public int pathId(int i) {
+        return pathIds[i];
+    }
+
+    /**
+     * 第 i 个文件变动（移动文件）的 to 的路径编号
+     */
+    public int targetId(int i) {
+        return extras[i];
+    }
+
+    /**
+     * 第 i 个文件变动（更新文件）的校验值
+     */
+    public String hash(int i) {
+        int u = extras[i];
+
+        if (otherHashIds[u] >= 0)
+            return otherHashes.get(otherHashIds[u]);
+
+        char[] chars = new char[21];
+
+        writeHex(chars, 0, crc64s[u], 16);
+        chars[16] = '_';
+        writeHex(chars, 17, crc16s[u] & 0xffff, 4);
+
+        return new String(chars);
+    }
+
+    static void writeHex(char[] chars, int start, long value, int digits) {
+        for (int k = digits - 1; k >= 0; k--) {
+            chars[start + k] = Character.forDigit((int) (value & 0xf), 16);
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * 第 i 个文件变动（更新文件）的文件长度
+     */
+    public long length(int i) {
+        return lengths[extras[i]];
+    }
+
+    /**
+     * 第 i 个文件变动（更新文件）的修改时间
+     */
+    public long modified(int i) {
+        return modifieds[extras[i]];
+    }
+
+    /**
+     * 第 i 个文件变动（更新文件）的数据在更新包中的偏移值
+     */
+    public long offset(int i) {
+        return offsets[extras[i]];
+    }
+}
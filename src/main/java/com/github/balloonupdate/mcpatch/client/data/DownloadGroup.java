@@ -0,0 +1,88 @@
+package com.github.balloonupdate.mcpatch.client.data;
+
+import java.util.ArrayList;
+
+/**
+ * 代表一次下载请求，包含同一个更新包里位置相邻的若干个文件。这些文件会通过一个请求一起下载下来，再拆分到各自的临时文件里<p>
+ * 离得比较远的多个小请求也可以合并成一个多范围请求，这时会包含多段不相邻的数据
+ */
+public class DownloadGroup {
+    /**
+     * 所属更新包文件名
+     */
+    public String containerName;
+
+    /**
+     * 所属版本号
+     */
+    public String label;
+
+    /**
+     * 要请求的字节范围，从第一个文件的开头到最后一个文件的结尾，中间文件之间的空隙也会被一起下载下来
+     */
+    public Range range;
+
+    /**
+     * 实际要请求的每一段字节范围，按偏移值从小到大排列，互相之间不会重叠。通常只有一段，和 range 一样；
+     * 多个离得比较远的小请求合并成一个多范围请求时会有多段，段与段之间的数据不会被下载
+     */
+    public ArrayList<Range> parts = new ArrayList<>();
+
+    /**
+     * 包含的文件，按在更新包里的偏移值从小到大排列，互相之间不会重叠
+     */
+    public ArrayList<TempUpdateFile> files = new ArrayList<>();
+
+    public DownloadGroup(TempUpdateFile first) {
+        containerName = first.containerName;
+        label = first.label;
+        range = new Range(first.offset, first.offset + first.length);
+
+        parts.add(new Range(range.start, range.end));
+        files.add(first);
+    }
+
+    /**
+     * 在末尾追加一个文件，和前面的文件属于同一段
+     */
+    public void add(TempUpdateFile file) {
+        files.add(file);
+
+        range.end = file.offset + file.length;
+        parts.get(parts.size() - 1).end = range.end;
+    }
+
+    /**
+     * 把另一个请求的所有段追加到末尾，两个请求合并成一个多范围请求
+     */
+    public void addParts(DownloadGroup other) {
+        files.addAll(other.files);
+        parts.addAll(other.parts);
+
+        range.end = other.range.end;
+    }
+
+    /**
+     * 实际要下载的字节数，也就是每一段的长度加起来
+     */
+    public long partsLength() {
+        long sum = 0;
+
+        for (Range part : parts)
+            sum += part.len();
+
+        return sum;
+    }
+
+    /**
+     * 所有文件加起来的有效数据长度，不包括文件之间的空隙
+     */
+    public long filesLength() {
+        long sum = 0;
+
+        for (TempUpdateFile f : files)
+            sum += f.length;
+
+        return sum;
+    }
+}
@@ -24,7 +24,7 @@ public interface FileChange {
         public String path;
 
         /**
-         * 文件校验值
+         * 文件校验值。没有前缀时是默认的 crc64+crc16 算法，以 “算法名:” 开头时使用对应的算法，比如 xxh3-128:
          */
         public String hash;
 
@@ -0,0 +1,99 @@
+package com.github.balloonupdate.mcpatch.client.data;
+
+import java.util.Arrays;
+
+/**
+ * 路径表，给每个不同的路径分配一个编号<p>
+ * 同一个文件往往会在很多个版本里反复出现，所有版本共用一张路径表之后，相同的路径在内存里只保存一份。
+ * 查找用的哈希表是开放寻址的 int 数组，里面只存编号，不需要为每个路径额外创建 HashMap.Entry 和 Integer 对象。所有方法都是线程安全的<p>
+ * 合并文件变动时会从多个线程大量调用 get()，所以 get() 不加锁：编号到路径的数组只会追加，写入新路径之后重新写一次 volatile 引用发布出去，
+ * 拿到编号的线程一定能读到对应的路径
+ */
+public class PathTable {
+    /**
+     * 编号到路径，只会追加，容量不够时换成一个更大的数组
+     */
+    volatile String[] paths = new String[128];
+
+    /**
+     * 已经分配的编号数量
+     */
+    int count = 0;
+
+    /**
+     * 哈希表，每一项是路径的编号 + 1，0 代表空位
+     */
+    int[] table = new int[256];
+
+    /**
+     * 获取一个路径的编号，第一次出现的路径会分配一个新编号
+     */
+    public synchronized int intern(String path) {
+        int mask = table.length - 1;
+        int slot = spread(path.hashCode()) & mask;
+
+        String[] array = paths;
+
+        while (table[slot] != 0) {
+            if (array[table[slot] - 1].equals(path))
+                return table[slot] - 1;
+
+            slot = (slot + 1) & mask;
+        }
+
+        if (count == array.length)
+            array = Arrays.copyOf(array, array.length * 2);
+
+        array[count] = path;
+        count += 1;
+
+        // 写入 volatile 字段，让不加锁的 get() 能看到新的路径
+        paths = array;
+
+        table[slot] = count;
+
+        // 保持一半以上的空位，查找时不用往后找太远
+        if (count * 2 > table.length)
+            rehash();
+
+        return count - 1;
+    }
+
+    void rehash() {
+        table = new int[table.length * 2];
+
+        int mask = table.length - 1;
+
+        String[] array = paths;
+
+        for (int id = 0; id < count; id++) {
+            int slot = spread(array[id].hashCode()) & mask;
+
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * 把哈希值的高位混进低位，和 HashMap 的做法一样
+     */
+    static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 根据编号获取路径，同一个编号每次返回的都是同一个 String 对象。不加锁，编号需要是 intern() 返回过的
+     */
+    public String get(int id) {
+        return paths[id];
+    }
+
+    /**
+     * 一共有多少个不同的路径
+     */
+    public synchronized int size() {
+        return count;
+    }
+}
@@ -42,20 +42,31 @@ public class TempUpdateFile {
     public long offset;
 
     /**
-     * 临时文件的存放位置
+     * 临时文件夹，所有文件共用同一个对象
      */
-    public Path tempPath;
+    public Path tempDir;
 
-    public TempUpdateFile(String containerName, String label, FileChange.UpdateFile op, Path tempPath) {
+    /**
+     * 临时文件的名字（不含 .temp 后缀），是文件最初的路径。文件被移动之后 path 会变，但临时文件的位置不变
+     */
+    public String tempName;
+
+    public TempUpdateFile(String containerName, String label, String path, String hash, long length, long modified, long offset, Path tempDir, String tempName) {
         this.containerName = containerName;
         this.label = label;
+        this.path = path;
+        this.hash = hash;
+        this.length = length;
+        this.modified = modified;
+        this.offset = offset;
+        this.tempDir = tempDir;
+        this.tempName = tempName;
+    }
 
-        path = op.path;
-        hash = op.hash;
-        length = op.len;
-        modified = op.modified;
-        offset = op.offset;
-
-        this.tempPath = tempPath;
+    /**
+     * 临时文件的存放位置，每次调用时现算，不需要为每个文件常驻一个 Path 对象
+     */
+    public Path getTempPath() {
+        return tempDir.resolve(tempName + ".temp");
     }
-}
\ No newline at end of file
+}
@@ -34,7 +34,7 @@ public class VersionIndex {
     public long len;
 
     /**
-     * 整个tar包文件的校验
+     * 整个tar包文件的校验。以 “算法名:” 开头时表示使用对应的校验算法，参考 HashUtility.getAlgorithm
      */
     public String hash;
 
@@ -3,8 +3,6 @@ package com.github.balloonupdate.mcpatch.client.data;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.LinkedList;
-
 /**
  * 代表一个版本的元数据
  */
@@ -22,17 +20,31 @@ public class VersionMeta {
     /**
      * 文件变动列表
      */
-    public LinkedList<FileChange> changes;
+    public ChangeList changes;
+
+    public VersionMeta(String label, String logs, ChangeList changes) {
+        this.label = label;
+        this.logs = logs;
+        this.changes = changes;
+    }
 
     /**
      * 从 JSON 里解析元数据
      * @param json
      */
     public VersionMeta(JSONObject json) {
+        this(json, new PathTable());
+    }
+
+    /**
+     * 从 JSON 里解析元数据
+     * @param paths 多个版本共用的路径表
+     */
+    public VersionMeta(JSONObject json, PathTable paths) {
         label = json.getString("label");
         logs = json.getString("logs");
 
-        changes = new LinkedList<>();
+        changes = new ChangeList(paths);
 
         JSONArray array = json.getJSONArray("changes");
 
@@ -47,6 +59,8 @@ public class VersionMeta {
 
             changes.add(op);
         }
+
+        changes.trimToSize();
     }
 
     /**
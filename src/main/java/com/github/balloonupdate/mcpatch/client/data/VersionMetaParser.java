@@ -0,0 +1,566 @@
+package com.github.balloonupdate.mcpatch.client.data;
+
+import com.github.balloonupdate.mcpatch.client.exceptions.McpatchBusinessException;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * 流式解析一个版本的元数据（由 VersionMeta 组成的 json 数组）<p>
+ * 下载元数据时直接把数据写进这个输出流，边下载边解析，不需要先把整个元数据读成一个字符串再解析成 JSONArray。
+ * 每个文件变动解析完后会立即存进按列存储的 ChangeList，每个版本解析完后会立即转换成 VersionMeta<p>
+ * 读到一个版本的 label 之后会先询问 filter，不需要的版本（比如重复的版本）剩下的内容会被直接跳过，不会保存在内存里，
+ * 所以不管元数据有多大，占用的内存都只和需要的那些版本有关<p>
+ * 遇到格式错误时不会抛出异常，否则会被下载部分当成网络问题反复重试。而是记下错误并忽略后面的数据，最后通过 finish 抛出
+ */
+public class VersionMetaParser extends OutputStream {
+    // 词法分析的状态
+    static final int VALUE = 0;
+    static final int STRING = 1;
+    static final int ESCAPE = 2;
+    static final int UNICODE = 3;
+    static final int BARE = 4;
+    static final int DONE = 5;
+
+    /**
+     * 决定要不要某个版本
+     */
+    LabelFilter filter;
+
+    /**
+     * 多个版本共用的路径表
+     */
+    PathTable paths;
+
+    /**
+     * 已经解析完的版本
+     */
+    ArrayList<VersionMeta> metas = new ArrayList<>();
+
+    /**
+     * 有多少个版本被 filter 跳过了
+     */
+    int skipped = 0;
+
+    /**
+     * 解析时遇到的错误，没有错误时是null
+     */
+    Exception error;
+
+    /**
+     * 当前的词法分析状态
+     */
+    int state = VALUE;
+
+    /**
+     * 当前所在的每一层分别是不是 json 对象，true 代表对象，false 代表数组
+     */
+    boolean[] stack = new boolean[16];
+
+    /**
+     * 当前嵌套了几层
+     */
+    int depth = 0;
+
+    /**
+     * 在 json 对象里，下一个字符串是不是键名
+     */
+    boolean expectKey = false;
+
+    /**
+     * 刚读完一个值，接下来应该是逗号或者右括号
+     */
+    boolean afterValue = false;
+
+    /**
+     * 刚读完一个键名，接下来应该是冒号
+     */
+    boolean needColon = false;
+
+    /**
+     * 正在读取的字符串是不是键名
+     */
+    boolean readingKey = false;
+
+    /**
+     * 大于等于0时表示正在跳过一个值，嵌套层数回到这个值时跳过结束
+     */
+    int skipUntil = -1;
+
+    /**
+     * 正在读取的字符串里，还没有解码的原始字节
+     */
+    byte[] raw = new byte[256];
+
+    /**
+     * raw 里有效的字节数
+     */
+    int rawLength = 0;
+
+    /**
+     * 正在读取的字符串里已经解码的部分
+     */
+    StringBuilder text = new StringBuilder();
+
+    /**
+     * 正在读取的 \\u 转义序列的值
+     */
+    int unicode;
+
+    /**
+     * 正在读取的 \\u 转义序列还差几个十六进制字符
+     */
+    int unicodeRemains;
+
+    /**
+     * 正在读取的数字或者 true、false、null
+     */
+    StringBuilder bare = new StringBuilder();
+
+    // 正在解析的版本
+    String metaKey;
+    String label;
+    String logs;
+    ChangeList changes;
+
+    // 正在解析的文件变动
+    String changeKey;
+    JSONObject change;
+
+    public VersionMetaParser(LabelFilter filter, PathTable paths) {
+        this.filter = filter;
+        this.paths = paths;
+    }
+
+    @Override
+    public void write(int b) {
+        if (error == null)
+            feed((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        for (int i = off; i < off + len && error == null; i++)
+            feed(b[i]);
+    }
+
+    /**
+     * 结束解析，返回所有需要的版本，顺序和元数据里的顺序一致
+     */
+    public ArrayList<VersionMeta> finish() throws McpatchBusinessException {
+        if (error != null)
+            throw new McpatchBusinessException("元数据格式不正确", error);
+
+        if (state != DONE)
+            throw new McpatchBusinessException("元数据不完整");
+
+        return metas;
+    }
+
+    /**
+     * 获取有多少个版本被 filter 跳过了
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * 处理一个字节
+     */
+    void feed(byte c) {
+        switch (state) {
+            case STRING:
+                if (c == '"') {
+                    state = VALUE;
+                    needColon = readingKey;
+                    afterValue = !readingKey;
+                    endString();
+                } else if (c == '\\') {
+                    state = ESCAPE;
+                } else if (skipUntil < 0) {
+                    appendRaw(c);
+                }
+                return;
+
+            case ESCAPE:
+                state = STRING;
+
+                switch (c) {
+                    case '"': appendChar('"'); return;
+                    case '\\': appendChar('\\'); return;
+                    case '/': appendChar('/'); return;
+                    case 'b': appendChar('\b'); return;
+                    case 'f': appendChar('\f'); return;
+                    case 'n': appendChar('\n'); return;
+                    case 'r': appendChar('\r'); return;
+                    case 't': appendChar('\t'); return;
+                    case 'u':
+                        state = UNICODE;
+                        unicode = 0;
+                        unicodeRemains = 4;
+                        return;
+                    default:
+                        fail("无法识别的转义字符: \\" + (char) c);
+                        return;
+                }
+
+            case UNICODE:
+                int digit = Character.digit(c, 16);
+
+                if (digit < 0) {
+                    fail("无法识别的 \\u 转义序列");
+                    return;
+                }
+
+                unicode = unicode * 16 + digit;
+
+                if (--unicodeRemains == 0) {
+                    state = STRING;
+                    appendChar((char) unicode);
+                }
+                return;
+
+            case BARE:
+                if (c == ',' || c == ':' || c == ']' || c == '}' || isWhitespace(c)) {
+                    state = VALUE;
+                    afterValue = true;
+                    endBare();
+
+                    if (error == null)
+                        feed(c);
+                } else {
+                    bare.append((char) c);
+                }
+                return;
+
+            case DONE:
+                // 最外层的数组结束后的内容直接忽略
+                return;
+
+            default:
+                break;
+        }
+
+        // 以下是 VALUE 状态
+        if (isWhitespace(c))
+            return;
+
+        if ((afterValue || needColon) && c != '}' && c != ']' && c != ',' && c != ':') {
+            fail(afterValue ? "缺少逗号" : "缺少冒号");
+            return;
+        }
+
+        switch (c) {
+            case '{':
+            case '[':
+                if (depth > 0 && stack[depth - 1] && expectKey) {
+                    fail("这里应该是一个键名");
+                    return;
+                }
+
+                beginContainer(c == '{');
+                return;
+
+            case '}':
+            case ']':
+                if (needColon || depth == 0 || stack[depth - 1] != (c == '}')) {
+                    fail("括号不匹配: " + (char) c);
+                    return;
+                }
+
+                endContainer();
+                return;
+
+            case ',':
+                if (!afterValue) {
+                    fail("多余的逗号");
+                    return;
+                }
+
+                afterValue = false;
+                expectKey = stack[depth - 1];
+                return;
+
+            case ':':
+                if (!needColon) {
+                    fail("多余的冒号");
+                    return;
+                }
+
+                needColon = false;
+                expectKey = false;
+                return;
+
+            case '"':
+                state = STRING;
+                readingKey = depth > 0 && stack[depth - 1] && expectKey;
+                rawLength = 0;
+                text.setLength(0);
+                return;
+
+            default:
+                if (depth == 0 || (stack[depth - 1] && expectKey)) {
+                    fail("无法识别的字符: " + (char) c);
+                    return;
+                }
+
+                state = BARE;
+                bare.setLength(0);
+                bare.append((char) c);
+        }
+    }
+
+    static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    void appendRaw(byte c) {
+        if (rawLength == raw.length) {
+            byte[] bigger = new byte[raw.length * 2];
+            System.arraycopy(raw, 0, bigger, 0, rawLength);
+            raw = bigger;
+        }
+
+        raw[rawLength++] = c;
+    }
+
+    void appendChar(char c) {
+        if (skipUntil >= 0)
+            return;
+
+        // 转义字符前面的原始字节一定是完整的 utf-8 字符，可以先解码
+        flushRaw();
+        text.append(c);
+    }
+
+    void flushRaw() {
+        if (rawLength > 0) {
+            text.append(new String(raw, 0, rawLength, StandardCharsets.UTF_8));
+            rawLength = 0;
+        }
+    }
+
+    void endString() {
+        if (skipUntil >= 0)
+            return;
+
+        flushRaw();
+
+        String value = text.toString();
+
+        if (readingKey) {
+            readingKey = false;
+            expectKey = false;
+
+            if (depth == 2)
+                metaKey = value;
+            else if (depth == 4)
+                changeKey = value;
+
+            return;
+        }
+
+        onScalar(value);
+    }
+
+    void endBare() {
+        if (skipUntil >= 0)
+            return;
+
+        String value = bare.toString();
+        Object parsed;
+
+        switch (value) {
+            case "true": parsed = Boolean.TRUE; break;
+            case "false": parsed = Boolean.FALSE; break;
+            case "null": parsed = JSONObject.NULL; break;
+            default:
+                try {
+                    if (value.indexOf('.') < 0 && value.indexOf('e') < 0 && value.indexOf('E') < 0)
+                        parsed = Long.parseLong(value);
+                    else
+                        parsed = Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    fail("无法识别的值: " + value);
+                    return;
+                }
+        }
+
+        onScalar(parsed);
+    }
+
+    void beginContainer(boolean object) {
+        if (skipUntil < 0) {
+            if (depth == 0 && object) {
+                fail("元数据最外层应该是一个数组");
+                return;
+            }
+
+            if (depth == 1) {
+                if (!object) {
+                    fail("版本应该是一个 json 对象");
+                    return;
+                }
+
+                // 开始一个新的版本
+                metaKey = null;
+                label = null;
+                logs = null;
+                changes = null;
+            }
+
+            if (depth == 2 && (object || !"changes".equals(metaKey)))
+                skipUntil = depth;
+
+            if (depth == 2 && skipUntil < 0)
+                changes = new ChangeList(paths);
+
+            if (depth == 3) {
+                if (!object) {
+                    fail("文件变动应该是一个 json 对象");
+                    return;
+                }
+
+                changeKey = null;
+                change = new JSONObject();
+            }
+
+            // 文件变动里不会再有嵌套的值，不认识的直接跳过
+            if (depth >= 4)
+                skipUntil = depth;
+        }
+
+        if (depth == stack.length) {
+            boolean[] bigger = new boolean[stack.length * 2];
+            System.arraycopy(stack, 0, bigger, 0, depth);
+            stack = bigger;
+        }
+
+        stack[depth++] = object;
+        expectKey = object;
+        afterValue = false;
+    }
+
+    void endContainer() {
+        depth -= 1;
+        expectKey = false;
+        afterValue = true;
+
+        if (skipUntil >= 0) {
+            if (depth == skipUntil)
+                skipUntil = -1;
+
+            return;
+        }
+
+        switch (depth) {
+            case 0:
+                state = DONE;
+                break;
+
+            case 1:
+                endMeta();
+                break;
+
+            case 3:
+                try {
+                    FileChange op = VersionMeta.parseFileChange(change);
+
+                    // 也有可能会解析失败
+                    if (op != null)
+                        changes.add(op);
+                } catch (JSONException e) {
+                    fail(e);
+                }
+
+                change = null;
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    void onScalar(Object value) {
+        switch (depth) {
+            case 1:
+                fail("版本应该是一个 json 对象");
+                return;
+
+            case 2:
+                if ("label".equals(metaKey)) {
+                    if (!(value instanceof String)) {
+                        fail("label 应该是一个字符串");
+                        return;
+                    }
+
+                    label = (String) value;
+
+                    // 不需要这个版本，剩下的内容全部跳过
+                    if (!filter.accept(label)) {
+                        skipped += 1;
+                        changes = null;
+                        skipUntil = 1;
+                    }
+                } else if ("logs".equals(metaKey)) {
+                    if (!(value instanceof String)) {
+                        fail("logs 应该是一个字符串");
+                        return;
+                    }
+
+                    logs = (String) value;
+                }
+                return;
+
+            case 3:
+                fail("文件变动应该是一个 json 对象");
+                return;
+
+            case 4:
+                if (changeKey != null)
+                    change.put(changeKey, value);
+                return;
+
+            default:
+                break;
+        }
+    }
+
+    void endMeta() {
+        if (label == null || logs == null || changes == null) {
+            fail(String.format("版本 %s 缺少 label、logs 或者 changes", label));
+            return;
+        }
+
+        changes.trimToSize();
+        metas.add(new VersionMeta(label, logs, changes));
+
+        label = null;
+        logs = null;
+        changes = null;
+    }
+
+    void fail(String message) {
+        fail(new JSONException(message));
+    }
+
+    void fail(Exception e) {
+        if (error == null)
+            error = e;
+    }
+
+    /**
+     * 决定要不要某个版本
+     */
+    @FunctionalInterface
+    public interface LabelFilter {
+        /**
+         * @param label 版本号
+         * @return 返回 false 时这个版本剩下的内容都会被跳过
+         */
+        boolean accept(String label);
+    }
+}
@@ -18,6 +18,9 @@ public class FileHandler implements LogHandler {
 
     PrintWriter writer;
 
+    /**
+     * SimpleDateFormat 不是线程安全的，只在 onMessage() 的锁里使用
+     */
     SimpleDateFormat fmt;
 
     public FileHandler(LogLevel level, Path logFile) {
@@ -49,7 +52,7 @@ public class FileHandler implements LogHandler {
     }
 
     @Override
-    public void onMessage(Message message) {
+    public synchronized void onMessage(Message message) {
         if (writer == null)
             return;
 
@@ -60,7 +63,7 @@ public class FileHandler implements LogHandler {
             indentText = String.join(" ", message.indents) + " ";
 
         String appId = message.appIdentifier ? "Mcpatch" : "";
-        String ts = fmt.format(System.currentTimeMillis());
+        String ts = fmt.format(message.time);
         String level = message.level.name().toUpperCase();
 
         String prefix = String.format("%s[ %s %-5s ] %s", appId, ts, level, indentText);
@@ -1,9 +1,11 @@
 package com.github.balloonupdate.mcpatch.client.logging;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
- * 日志记录器。负责打印日志和记录日志
+ * 日志记录器。负责打印日志和记录日志<p>
+ * 下载线程也会记录日志，所以所有方法都需要加锁，每条日志单独拷贝一份当时的缩进文字
  */
 public class Log {
     /**
@@ -54,7 +56,9 @@ public class Log {
      * @param level 日志的等级
      * @param content 日志的内容
      */
-    public static void message(LogLevel level, String content) {
+    public static synchronized void message(LogLevel level, String content) {
+        List<String> snapshot = null;
+
         for (LogHandler handler : handlers) {
             if(level.ordinal() >= handler.getFilterLevel().ordinal()) {
                 Message msg = new Message();
@@ -62,7 +66,10 @@ public class Log {
                 msg.time = System.currentTimeMillis();
                 msg.level = level;
                 msg.content = content;
-                msg.indents = indents;
+                if (snapshot == null)
+                    snapshot = new ArrayList<>(indents);
+
+                msg.indents = snapshot;
                 msg.appIdentifier = appIdentifierEnabled;
 
                 handler.onMessage(msg);
@@ -71,16 +78,16 @@ public class Log {
     }
 
     /**
-     * 开启一个 tag
+     * 开启一个 tag。缩进是所有线程共用的，只应该在主线程上使用
      */
-    public static void openIndent(String prefix) {
+    public static synchronized void openIndent(String prefix) {
         indents.add(prefix);
     }
 
     /**
      * 关闭上一个 tag
      */
-    public static void closeIndent() {
+    public static synchronized void closeIndent() {
         if (!indents.isEmpty())
             indents.remove(indents.size() - 1);
     }
@@ -95,7 +102,7 @@ public class Log {
     /**
      * 注册一个日志记录器
      */
-    public static void addHandler(LogHandler handler) {
+    public static synchronized void addHandler(LogHandler handler) {
         handler.onStart();
 
         handlers.add(handler);
@@ -104,7 +111,7 @@ public class Log {
     /**
      * 停止日志记录器
      */
-    public static void stop() {
+    public static synchronized void stop() {
         for (LogHandler handler : handlers) {
             handler.onStart();
         }
@@ -8,15 +8,16 @@ import com.github.balloonupdate.mcpatch.client.network.impl.AlistProtocol;
 import com.github.balloonupdate.mcpatch.client.network.impl.HttpProtocol;
 import com.github.balloonupdate.mcpatch.client.network.impl.McpatchProtocol;
 import com.github.balloonupdate.mcpatch.client.network.impl.WebdavProtocol;
-import com.github.balloonupdate.mcpatch.client.utils.RuntimeAssert;
+import com.github.balloonupdate.mcpatch.client.utils.CountingOutputStream;
 
 import java.nio.channels.ClosedByInterruptException;
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * 自动重试和切换备用服务器的服务器类，各种业务逻辑都会直接和这个类打交道，而不是具体的协议实现类
+ * 自动重试和切换备用服务器的服务器类，各种业务逻辑都会直接和这个类打交道，而不是具体的协议实现类<p>
+ * 多个线程可以同时通过这个类下载文件，某个线程切换了服务器后，其它线程也会跟着使用新的服务器
  */
 public class Servers implements UpdatingServer {
     /**
@@ -32,7 +33,7 @@ public class Servers implements UpdatingServer {
     /**
      * 当前切换到第几个服务器了
      */
-    int current = 0;
+    volatile int current = 0;
 
     public Servers(AppConfig config) throws McpatchBusinessException {
         this.config = config;
@@ -65,15 +66,101 @@ public class Servers implements UpdatingServer {
     }
 
     @Override
-    public void downloadFile(String path, Range range, String desc, Path writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+    public void downloadStream(String path, Range range, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+        // 只有明确指定了范围的请求才能断点续传，因为需要知道剩余部分的范围
+        boolean resumable = range.len() > 0;
+
+        downloadResumable(resumable ? range.len() : -1, desc, writeTo, callback, fallback, (e, resumeFrom, output, cb) -> {
+            Range remains = new Range(range.start + resumeFrom, range.end);
+
+            e.downloadStream(path, remains, desc, output, cb, null);
+        });
+    }
+
+    @Override
+    public void downloadRanges(String path, List<Range> ranges, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+        long total = 0;
+
+        for (Range range : ranges)
+            total += range.len();
+
+        downloadResumable(total, desc, writeTo, callback, fallback, (e, resumeFrom, output, cb) -> {
+            // 去掉已经下载完的段，以及下载了一部分的段的前半部分
+            List<Range> remains = new ArrayList<>();
+            long skip = resumeFrom;
+
+            for (Range range : ranges) {
+                if (skip >= range.len()) {
+                    skip -= range.len();
+                    continue;
+                }
+
+                remains.add(new Range(range.start + skip, range.end));
+                skip = 0;
+            }
+
+            e.downloadRanges(path, remains, desc, output, cb, null);
+        });
+    }
+
+    /**
+     * 在自动重试的基础上实现断点续传，重试时只请求还没写入的部分
+     *
+     * @param length 一共要写入多少字节，小于0时表示不知道长度，无法断点续传，每次重试都从头开始
+     * @param task 发起实际的请求，参数是这次从第几个字节开始
+     */
+    void downloadResumable(long length, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback, ResumableTask task) throws McpatchBusinessException {
+        boolean resumable = length >= 0;
+
+        // 已经成功写入的字节数，重试时从这里继续下载
+        AtomicLong written = new AtomicLong();
+
+        // 已经通过 callback 报告过的字节数
+        AtomicLong reported = new AtomicLong();
+
         multipleAvailableServers(e -> {
-            e.downloadFile(path, range, desc, writeTo, callback, fallback);
+            long resumeFrom = resumable ? written.get() : 0;
+
+            // 上次其实已经写完了，只是在收尾时出了错
+            if (resumable && resumeFrom == length)
+                return 114514;
+
+            written.set(resumeFrom);
+
+            try {
+                task.run(e, resumeFrom, from -> new CountingOutputStream(writeTo.open(resumeFrom + from), written), (batch, downloaded, total) -> {
+                    reported.addAndGet(batch);
+                    callback.on(batch, resumeFrom + downloaded, resumeFrom + total);
+                });
+            } catch (McpatchBusinessException ex) {
+                // 已经写入的数据下次会继续使用，只需要回退多报告的那部分
+                long keep = Math.min(reported.get(), resumable ? written.get() : 0);
+                long rollback = reported.getAndSet(keep) - keep;
+
+                if (fallback != null)
+                    fallback.on(rollback);
+
+                if (resumable && written.get() > 0)
+                    Log.warn(String.format("下载中断，重试时从第 %d 字节继续: %s", written.get(), desc));
+
+                throw ex;
+            }
 
             // 没办法这里必须要返回一个东西，不然编译不通过
             return 114514;
         });
     }
 
+    @Override
+    public boolean supportsConcurrentRequests() {
+        return servers.get(Math.min(current, servers.size() - 1)).supportsConcurrentRequests();
+    }
+
+    @Override
+    public boolean supportsMultipleRanges() {
+        return servers.get(Math.min(current, servers.size() - 1)).supportsMultipleRanges();
+    }
+
     /**
      * 实现自动重试机制+自动切换服务器源，如果遇到网络失败会重试，重试也不行就会切换到下一个更新服务器
      *
@@ -87,13 +174,19 @@ public class Servers implements UpdatingServer {
         // 记录第几次出错
         int errorTimes = 0;
 
-        // 每个服务器挨个试
-        while (current < servers.size()) {
-            UpdatingServer server = servers.get(current);
+        // 从当前正在使用的服务器开始，每个服务器挨个试
+        int index = current;
+
+        while (index < servers.size()) {
+            UpdatingServer server = servers.get(index);
 
             int times = config.reties;
 
             while (--times >= 0) {
+                // 其它线程出错后停止了整个下载
+                if (Thread.currentThread().isInterrupted())
+                    throw new McpatchBusinessException("下载被打断了");
+
                 try {
                     return task.runTask(server);
                 } catch (McpatchBusinessException e) {
@@ -112,36 +205,53 @@ public class Servers implements UpdatingServer {
                     ex = e;
 
                     errorTimes += 1;
-                    Log.openIndent("第" + errorTimes + "次出错：");
 
-                    Log.warn("");
-                    Log.warn(ex.toString());
-                    Log.warn("retry " + times + "...");
+                    // 这里可能在下载线程上运行，不能修改所有线程共用的缩进，直接把前缀写在日志里
+                    String prefix = "第" + errorTimes + "次出错：";
 
-                    Log.closeIndent();
+                    Log.warn(prefix);
+                    Log.warn(prefix + ex.toString());
+                    Log.warn(prefix + "retry " + times + "...");
 
                     // 不是最后一次机会的话就等待一下下
                     if (times > 0) {
                         try {
                             Thread.sleep(3000);
-                        } catch (InterruptedException ignored) {}
+                        } catch (InterruptedException e2) {
+                            throw new McpatchBusinessException("下载被打断了", e2);
+                        }
                     }
                 }
             }
 
             // 如果还有后续服务器，就打印错误
-            if (current < servers.size() - 1)
+            if (index < servers.size() - 1)
                 Log.error(ex.toString());
 
             // 切换服务器
-            current += 1;
+            index = switchServer(index);
         }
 
-        RuntimeAssert.isTrue(ex != null);
+        // 其它线程已经把所有服务器都试过了
+        if (ex == null)
+            throw new McpatchBusinessException("所有的更新服务器都无法使用");
 
         throw ex;
     }
 
+    /**
+     * 从出错的服务器切换到下一个服务器。如果其它线程已经切换过了，就直接使用切换后的服务器，不会重复切换
+     *
+     * @param failed 出错的服务器的编号
+     * @return 接下来要使用的服务器的编号
+     */
+    synchronized int switchServer(int failed) {
+        if (current == failed)
+            current = failed + 1;
+
+        return current;
+    }
+
     @Override
     public void close() throws Exception {
         for (UpdatingServer source : servers) {
@@ -153,4 +263,9 @@ public class Servers implements UpdatingServer {
     public interface Retry<T, S> {
         T runTask(S server) throws McpatchBusinessException;
     }
+
+    @FunctionalInterface
+    public interface ResumableTask {
+        void run(UpdatingServer server, long resumeFrom, OutputProvider writeTo, OnDownload callback) throws McpatchBusinessException;
+    }
 }
@@ -2,8 +2,16 @@ package com.github.balloonupdate.mcpatch.client.network;
 
 import com.github.balloonupdate.mcpatch.client.data.Range;
 import com.github.balloonupdate.mcpatch.client.exceptions.McpatchBusinessException;
+import com.github.balloonupdate.mcpatch.client.utils.ChannelOutputStream;
+import com.github.balloonupdate.mcpatch.client.utils.FileHasher;
+import com.github.balloonupdate.mcpatch.client.utils.HashingOutputStream;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 /**
  * 代表一个更新服务器的接口
@@ -23,10 +31,90 @@ public interface UpdatingServer extends AutoCloseable {
      *
      * @param path 文件的相对路径
      * @param writeTo 文件落盘位置
+     * @param position 请求范围内的第一个字节写到文件里的哪个位置。不为0时表示接着文件里已有的数据继续下载，这个位置之前的数据保留，
+     *                 此时 hasher 里需要已经包含了这部分数据
+     * @param hasher 在数据落盘的同时计算校验值，从文件开头写入时会被重置，不需要计算时可以传null
      * @param callback 报告下载进度的回调
      * @param fallback 下载失败的事件，通常会进行重试
      */
-    void downloadFile(String path, Range range, String desc, Path writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException;
+    default void downloadFile(String path, Range range, String desc, Path writeTo, long position, FileHasher hasher, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+        downloadStream(path, range, desc, resumeFrom -> {
+            long writeFrom = position + resumeFrom;
+
+            // 从上次中断的位置继续写入，丢弃掉后面可能只写入了一半的数据。为0时就是从头写入
+            FileChannel channel = FileChannel.open(writeTo, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+            try {
+                channel.truncate(writeFrom);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+
+            // hasher 里已经包含了前面的数据，从头写入时才需要重置
+            if (writeFrom == 0 && hasher != null)
+                hasher.reset();
+
+            // 写入 FileChannel，这样协议收到的数据如果在堆外内存里，可以直接写入文件
+            OutputStream output = new ChannelOutputStream(channel, writeFrom, true);
+
+            return hasher != null ? new HashingOutputStream(output, hasher) : output;
+        }, callback, fallback);
+    }
+
+    /**
+     * 发起一个二进制数据的下载请求，下载到的数据会按顺序写入 writeTo 提供的输出流里，并通过回调函数报告下载进度
+     *
+     * @param path 文件的相对路径
+     * @param writeTo 提供输出流，每次开始下载（包括重试）时都会重新打开一次，下载结束或者失败时关闭
+     * @param callback 报告下载进度的回调
+     * @param fallback 下载失败的事件，通常会进行重试
+     */
+    void downloadStream(String path, Range range, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException;
+
+    /**
+     * 发起一个多范围下载请求，一次下载同一个文件里的多段数据。每一段的数据按顺序首尾相连写入 writeTo 提供的输出流里，段与段之间的数据不会被写入<p>
+     * 不支持多范围请求的协议会逐段发起请求
+     *
+     * @param path 文件的相对路径
+     * @param ranges 要下载的每一段范围，需要按从小到大排列，互相之间不能重叠，每一段的长度都不能为0
+     * @param writeTo 提供输出流，resumeFrom 是各段拼起来之后的位置
+     * @param callback 报告下载进度的回调，报告的是各段拼起来之后的进度
+     * @param fallback 下载失败的事件，通常会进行重试
+     */
+    default void downloadRanges(String path, List<Range> ranges, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+        long total = 0;
+
+        for (Range range : ranges)
+            total += range.len();
+
+        long written = 0;
+
+        for (Range range : ranges) {
+            long base = written;
+            long length = total;
+
+            downloadStream(path, range, desc, resumeFrom -> writeTo.open(base + resumeFrom), (batch, downloaded, t) -> {
+                callback.on(batch, base + downloaded, length);
+            }, fallback);
+
+            written += range.len();
+        }
+    }
+
+    /**
+     * 是否可以同时发起多个请求，并且每个请求都使用各自独立的连接。不支持的话多个请求会排队依次进行，分段下载就没有意义了
+     */
+    default boolean supportsConcurrentRequests() {
+        return false;
+    }
+
+    /**
+     * 是否可以通过一个请求同时下载多段数据，不支持的话 downloadRanges 会逐段发起请求，多范围请求就没有意义了
+     */
+    default boolean supportsMultipleRanges() {
+        return false;
+    }
 
 //    /**
 //     * 给一个文字打码，避免泄露账号密码登信息。通常用在日志中。目前此功能仅是预留，没有实装
@@ -36,6 +124,20 @@ public interface UpdatingServer extends AutoCloseable {
 //     */
 //    String shadowText(String text);
 
+    /**
+     * 提供下载数据的输出流
+     */
+    @FunctionalInterface
+    interface OutputProvider {
+        /**
+         * 打开一个新的输出流。具体的协议实现总是传0，断点续传由 Servers 负责处理
+         *
+         * @param resumeFrom 写入的第一个字节是请求范围内的第几个字节。为0时表示从头开始，之前写入的数据全部丢弃；
+         *                   不为0时表示从上次中断的位置继续，这个位置之前的数据保留，之后的数据丢弃
+         */
+        OutputStream open(long resumeFrom) throws IOException;
+    }
+
     /**
      * 下载文件的进度事件
      */
@@ -56,8 +158,8 @@ public interface UpdatingServer extends AutoCloseable {
     @FunctionalInterface
     interface OnFail {
         /**
-         * 当文件下载时，会通过这个方法告知下载失败了，提醒UI回退进度条
-         * @param fallback 要回退多少字节
+         * 当文件下载时，会通过这个方法告知下载失败了，提醒UI回退进度条。已经写入的数据在重试时会继续使用，不需要回退
+         * @param fallback 要回退多少字节，也就是已经报告过、但重试时需要重新下载的那部分
          */
         void on(long fallback);
     }
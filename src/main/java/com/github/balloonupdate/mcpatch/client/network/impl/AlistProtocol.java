@@ -80,7 +80,7 @@ public class AlistProtocol implements UpdatingServer {
     }
 
     @Override
-    public void downloadFile(String path, Range range, String desc, Path writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+    public void downloadStream(String path, Range range, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
 
     }
 
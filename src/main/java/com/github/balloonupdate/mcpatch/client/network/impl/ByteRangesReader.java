@@ -0,0 +1,296 @@
+package com.github.balloonupdate.mcpatch.client.network.impl;
+
+import com.github.balloonupdate.mcpatch.client.data.Range;
+import com.github.balloonupdate.mcpatch.client.network.UpdatingServer;
+import com.github.balloonupdate.mcpatch.client.utils.ReduceReportingFrequency;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * 读取多范围请求的响应，把请求的每一段数据按顺序首尾相连写入输出流<p>
+ * 服务器可能会把离得很近的几段合并成一段返回，也可能只返回一整段，所以会按响应里每一段实际的范围挑出需要的数据，多出来的部分直接丢弃。
+ * 如果响应里缺了某一段，或者顺序不对，后面的数据就都不再写入，最后通过 isComplete 判断是否完整
+ */
+public class ByteRangesReader {
+    /**
+     * 一行最多多少字节，避免遇到不正常的响应时一直读下去
+     */
+    static final int maxLineLength = 8192;
+
+    /**
+     * 请求的每一段范围，按从小到大排列
+     */
+    List<Range> ranges;
+
+    /**
+     * 输出流
+     */
+    OutputStream output;
+
+    /**
+     * 报告进度的回调
+     */
+    UpdatingServer.OnDownload callback;
+
+    /**
+     * 降低进度的报告频率
+     */
+    ReduceReportingFrequency report = new ReduceReportingFrequency();
+
+    /**
+     * 所有段加起来一共多少字节
+     */
+    long total;
+
+    /**
+     * 正在等待第几段的数据
+     */
+    int index = 0;
+
+    /**
+     * 下一个需要的字节在文件里的位置
+     */
+    long position;
+
+    /**
+     * 已经写入输出流多少字节
+     */
+    long written = 0;
+
+    /**
+     * 响应里缺了数据或者顺序不对，之后收到的数据都不能再写入了
+     */
+    boolean broken = false;
+
+    public ByteRangesReader(List<Range> ranges, OutputStream output, UpdatingServer.OnDownload callback) {
+        this.ranges = ranges;
+        this.output = output;
+        this.callback = callback;
+
+        for (Range range : ranges)
+            total += range.len();
+
+        position = ranges.get(0).start;
+    }
+
+    /**
+     * 读取 multipart/byteranges 格式的响应体
+     *
+     * @param input 响应体，需要是带缓冲的输入流
+     * @param boundary 每一段之间的分隔符
+     */
+    public void readMultipart(InputStream input, String boundary, byte[] buffer) throws IOException {
+        String delimiter = "--" + boundary;
+
+        while (true) {
+            String line = readLine(input);
+
+            // 结束分隔符，或者服务器没有发送结束分隔符就关闭了连接
+            if (line == null || line.equals(delimiter + "--"))
+                return;
+
+            // 开头的说明文字和每一段末尾的换行
+            if (!line.equals(delimiter))
+                continue;
+
+            // 读取这一段的头部
+            Range range = null;
+
+            while (true) {
+                line = readLine(input);
+
+                if (line == null)
+                    throw new EOFException("多范围响应在读取头部时意外结束了");
+
+                if (line.isEmpty())
+                    break;
+
+                int colon = line.indexOf(':');
+
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range"))
+                    range = parseContentRange(line.substring(colon + 1));
+            }
+
+            if (range == null)
+                throw new IOException("多范围响应里缺少 Content-Range 头");
+
+            readPart(input, range, buffer);
+        }
+    }
+
+    /**
+     * 读取一段数据
+     *
+     * @param range 这段数据在文件里的范围
+     */
+    public void readPart(InputStream input, Range range, byte[] buffer) throws IOException {
+        long start = range.start;
+        long remains = range.len();
+
+        while (remains > 0) {
+            int len = input.read(buffer, 0, (int) Math.min(buffer.length, remains));
+
+            if (len == -1)
+                throw new EOFException(String.format("多范围响应里的一段数据 %d..%d 意外结束了", range.start, range.end));
+
+            feed(start, buffer, len);
+
+            start += len;
+            remains -= len;
+        }
+    }
+
+    /**
+     * 收到一些数据，挑出需要的部分写入输出流
+     *
+     * @param start 这些数据在文件里的位置
+     */
+    void feed(long start, byte[] data, int len) throws IOException {
+        int off = 0;
+
+        while (len > 0 && !broken && index < ranges.size()) {
+            // 已经收到过的数据，或者段与段之间不需要的数据
+            if (start + len <= position)
+                return;
+
+            // 缺了一部分数据
+            if (start > position) {
+                broken = true;
+                return;
+            }
+
+            int skip = (int) (position - start);
+            int n = (int) Math.min(len - skip, ranges.get(index).end - position);
+
+            output.write(data, off + skip, n);
+
+            written += n;
+            position += n;
+            start += skip + n;
+            off += skip + n;
+            len -= skip + n;
+
+            // 报告进度
+            long d = report.feed(n);
+
+            if (d > 0)
+                callback.on(d, written, total);
+
+            // 这一段收完了，开始等待下一段
+            if (position == ranges.get(index).end) {
+                index += 1;
+
+                if (index < ranges.size())
+                    position = ranges.get(index).start;
+            }
+        }
+    }
+
+    /**
+     * 是否所有段的数据都收完整了
+     */
+    public boolean isComplete() {
+        return index == ranges.size();
+    }
+
+    /**
+     * 获取已经写入输出流多少字节
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * 读取一行文字，去掉末尾的换行符
+     *
+     * @return 这一行文字，已经读到末尾时返回null
+     */
+    static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        while (true) {
+            int b = input.read();
+
+            if (b == -1)
+                return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+
+            if (b == '\n')
+                break;
+
+            if (line.size() >= maxLineLength)
+                throw new IOException("多范围响应里的一行文字太长了");
+
+            line.write(b);
+        }
+
+        String text = line.toString("ISO-8859-1");
+
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * 从 Content-Type 头里取出分隔符
+     *
+     * @return 分隔符，不是 multipart/byteranges 时返回null
+     */
+    public static String parseBoundary(String contentType) {
+        if (contentType == null || !contentType.trim().toLowerCase().startsWith("multipart/byteranges"))
+            return null;
+
+        for (String param : contentType.split(";")) {
+            int equal = param.indexOf('=');
+
+            if (equal < 0 || !param.substring(0, equal).trim().equalsIgnoreCase("boundary"))
+                continue;
+
+            String boundary = param.substring(equal + 1).trim();
+
+            if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\""))
+                boundary = boundary.substring(1, boundary.length() - 1);
+
+            return boundary.isEmpty() ? null : boundary;
+        }
+
+        return null;
+    }
+
+    /**
+     * 解析 Content-Range 头，比如 bytes 100-199/1000
+     *
+     * @return 对应的范围，end 不包含在内。格式不对时返回null
+     */
+    public static Range parseContentRange(String value) {
+        if (value == null)
+            return null;
+
+        String text = value.trim();
+
+        if (!text.toLowerCase().startsWith("bytes"))
+            return null;
+
+        text = text.substring(5).trim();
+
+        int dash = text.indexOf('-');
+        int slash = text.indexOf('/');
+
+        if (dash <= 0 || slash < dash)
+            return null;
+
+        try {
+            long start = Long.parseLong(text.substring(0, dash).trim());
+            long end = Long.parseLong(text.substring(dash + 1, slash).trim());
+
+            if (end < start)
+                return null;
+
+            return new Range(start, end + 1);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
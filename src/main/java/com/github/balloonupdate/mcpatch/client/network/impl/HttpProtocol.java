@@ -3,8 +3,9 @@ package com.github.balloonupdate.mcpatch.client.network.impl;
 import com.github.balloonupdate.mcpatch.client.config.AppConfig;
 import com.github.balloonupdate.mcpatch.client.data.Range;
 import com.github.balloonupdate.mcpatch.client.exceptions.McpatchBusinessException;
+import com.github.balloonupdate.mcpatch.client.logging.Log;
 import com.github.balloonupdate.mcpatch.client.network.UpdatingServer;
-import com.github.balloonupdate.mcpatch.client.utils.BytesUtils;
+import com.github.balloonupdate.mcpatch.client.utils.BufferPool;
 import com.github.balloonupdate.mcpatch.client.utils.ReduceReportingFrequency;
 import com.github.balloonupdate.mcpatch.client.utils.RuntimeAssert;
 import okhttp3.OkHttpClient;
@@ -15,18 +16,22 @@ import okio.BufferedSource;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * 代表 HTTP 更新协议的实现
@@ -52,6 +57,11 @@ public class HttpProtocol implements UpdatingServer {
      */
     OkHttpClient client;
 
+    /**
+     * 服务器是否支持多范围请求，发现不支持后就不再尝试，改为逐段下载
+     */
+    volatile boolean multipleRanges = true;
+
     public HttpProtocol(int number, String url, AppConfig config) {
         this.number = number;
         this.config = config;
@@ -91,16 +101,19 @@ public class HttpProtocol implements UpdatingServer {
     }
 
     @Override
-    public void downloadFile(String path, Range range, String desc, Path writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+    public void downloadStream(String path, Range range, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
         try (Response rsp = request(path, range, desc)) {
             long contentLength = rsp.body().contentLength();
 
             // 本次文件传输一共累计传输了多少字节
             long downloaded = 0;
 
+            // 从缓冲区池里借一块内存
+            ByteBuffer pooled = BufferPool.acquireHeap();
+
             try (BufferedSource input = rsp.body().source()) {
-                try (OutputStream output = Files.newOutputStream(writeTo)) {
-                    byte[] buffer = new byte[BytesUtils.chooseBufferSize(contentLength)];
+                try (OutputStream output = writeTo.open(0)) {
+                    byte[] buffer = pooled.array();
 
                     ReduceReportingFrequency report = new ReduceReportingFrequency();
 
@@ -132,10 +145,105 @@ public class HttpProtocol implements UpdatingServer {
                     fallback.on(downloaded);
 
                 throw new McpatchBusinessException(e);
+            } finally {
+                BufferPool.release(pooled);
+            }
+        }
+    }
+
+    @Override
+    public void downloadRanges(String path, List<Range> ranges, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+        if (ranges.size() == 1 || !multipleRanges) {
+            UpdatingServer.super.downloadRanges(path, ranges, desc, writeTo, callback, fallback);
+            return;
+        }
+
+        String url = baseUrl + path;
+
+        // 一次请求多段数据，比如 bytes=0-99,200-299
+        String value = ranges.stream().map(e -> e.start + "-" + (e.end - 1)).collect(Collectors.joining(","));
+
+        Request req = buildRequest(url, Range.Empty(), Collections.singletonMap("Range", "bytes=" + value));
+
+        try (Response rsp = execute(req, url)) {
+            int code = rsp.code();
+
+            if (code == 206) {
+                readRanges(rsp, ranges, desc, writeTo, callback, fallback);
+                return;
+            }
+
+            if (code != 200) {
+                String body = rsp.peekBody(300).string();
+
+                throw new McpatchBusinessException(String.format("服务器(%d)返回了 %d 而不是206: %s (%s)\n%s", number, code, path, desc, body));
+            }
+        } catch (IOException e) {
+            throw new McpatchBusinessException("连接中断，请检查网络。" + url, e);
+        }
+
+        // 服务器忽略了 Range 头，返回了整个文件
+        multipleRanges = false;
+
+        Log.warn(String.format("服务器(%d)不支持多范围请求，改为逐段下载", number));
+
+        UpdatingServer.super.downloadRanges(path, ranges, desc, writeTo, callback, fallback);
+    }
+
+    /**
+     * 读取多范围请求的响应，服务器可能返回 multipart/byteranges 格式的多段数据，也可能把所有段合并成一段返回
+     */
+    void readRanges(Response rsp, List<Range> ranges, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+        ByteRangesReader reader = null;
+        ByteBuffer pooled = BufferPool.acquireHeap();
+
+        try (InputStream input = new BufferedInputStream(rsp.body().byteStream())) {
+            try (OutputStream output = writeTo.open(0)) {
+                reader = new ByteRangesReader(ranges, output, callback);
+
+                byte[] buffer = pooled.array();
+
+                String boundary = ByteRangesReader.parseBoundary(rsp.header("Content-Type"));
+
+                if (boundary != null) {
+                    reader.readMultipart(input, boundary, buffer);
+                } else {
+                    Range range = ByteRangesReader.parseContentRange(rsp.header("Content-Range"));
+
+                    if (range != null)
+                        reader.readPart(input, range, buffer);
+                }
+
+                // 响应里缺了数据，下次重试时改为逐段下载
+                if (!reader.isComplete()) {
+                    multipleRanges = false;
+
+                    throw new McpatchBusinessException(String.format("服务器(%d)返回的多范围响应不完整，改为逐段下载: %s", number, desc));
+                }
+
+                // 完成下载
+                callback.on(0, reader.total, reader.total);
             }
+        } catch (IOException e) {
+            if (fallback != null && reader != null)
+                fallback.on(reader.getWritten());
+
+            throw new McpatchBusinessException(e);
+        } finally {
+            BufferPool.release(pooled);
         }
     }
 
+    @Override
+    public boolean supportsConcurrentRequests() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsMultipleRanges() {
+        return multipleRanges;
+    }
+
     @Override
     public void close() throws Exception {
 
@@ -202,6 +310,27 @@ public class HttpProtocol implements UpdatingServer {
         }
     }
 
+    /**
+     * 发出一个请求，把常见的网络错误转换成容易看懂的提示
+     * @param req 要发出的请求
+     * @param url 请求的 url
+     * @return 响应
+     * @throws McpatchBusinessException 请求失败时
+     */
+    Response execute(Request req, String url) throws McpatchBusinessException {
+        try {
+            return client.newCall(req).execute();
+        } catch (ConnectException e) {
+            throw new McpatchBusinessException("连接被拒绝，请检查网络。" + url, e);
+        } catch (SocketException e) {
+            throw new McpatchBusinessException("连接中断，请检查网络。" + url, e);
+        } catch (SocketTimeoutException e) {
+            throw new McpatchBusinessException("连接超市，请检查网络。" + url, e);
+        } catch (IOException e) {
+            throw new McpatchBusinessException(e);
+        }
+    }
+
     /**
      * 构建一个请求
      * @param url 请求的 url
@@ -4,18 +4,25 @@ import com.github.balloonupdate.mcpatch.client.config.AppConfig;
 import com.github.balloonupdate.mcpatch.client.data.Range;
 import com.github.balloonupdate.mcpatch.client.exceptions.McpatchBusinessException;
 import com.github.balloonupdate.mcpatch.client.network.UpdatingServer;
+import com.github.balloonupdate.mcpatch.client.utils.BufferPool;
 import com.github.balloonupdate.mcpatch.client.utils.BytesUtils;
 import com.github.balloonupdate.mcpatch.client.utils.ReduceReportingFrequency;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 
 /**
- * 代表 Mcpatch 私有协议的实现
+ * 代表 Mcpatch 私有协议的实现<p>
+ * 私有协议只有一条连接，请求和响应必须一问一答，因此多个线程同时请求时会排队依次进行<p>
+ * 连接使用非阻塞的 SocketChannel，通过 Selector 实现超时判定。下载的数据先读进从 BufferPool 借来的堆外内存，
+ * 输出流支持 WritableByteChannel 时直接从这块内存写入临时文件，不经过 Java 堆，可以减少高速局域网下的 CPU 和 GC 开销
  */
 public class McpatchProtocol implements UpdatingServer {
     /**
@@ -39,19 +46,19 @@ public class McpatchProtocol implements UpdatingServer {
     int port;
 
     /**
-     * Socket 对象
+     * 连接对象，没有连接时是null
      */
-    Socket socket;
+    SocketChannel channel;
 
     /**
-     * Socket 对象上的输入流
+     * 用来等待连接可读或者可写，同时实现超时判定
      */
-    InputStream input;
+    Selector selector;
 
     /**
-     * Socket 对象上的输出流
+     * 连接在 selector 上的注册信息
      */
-    OutputStream output;
+    SelectionKey key;
 
     public McpatchProtocol(int number, String url, AppConfig config) throws McpatchBusinessException {
         this.number = number;
@@ -69,7 +76,7 @@ public class McpatchProtocol implements UpdatingServer {
     }
 
     @Override
-    public String requestText(String path, Range range, String desc) throws McpatchBusinessException {
+    public synchronized String requestText(String path, Range range, String desc) throws McpatchBusinessException {
         long len = request(path, range, desc);
 
         // 处理边界情况
@@ -79,8 +86,9 @@ public class McpatchProtocol implements UpdatingServer {
         byte[] buf = new byte[(int) len];
 
         try {
-            BytesUtils.readAll(buf, input);
+            readFully(ByteBuffer.wrap(buf));
         } catch (IOException e) {
+            disconnect();
             throw new McpatchBusinessException(e);
         }
 
@@ -88,28 +96,33 @@ public class McpatchProtocol implements UpdatingServer {
     }
 
     @Override
-    public void downloadFile(String path, Range range, String desc, Path writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+    public synchronized void downloadStream(String path, Range range, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
         long size = request(path, range, desc);
 
         // 本次文件传输一共累计传输了多少字节
         long downloaded = 0;
 
-        try {
-            try (OutputStream output = Files.newOutputStream(writeTo)) {
-                byte[] buffer = new byte[BytesUtils.chooseBufferSize(size)];
+        // 从缓冲区池里借一块堆外内存
+        ByteBuffer buffer = BufferPool.acquireDirect();
 
+        try {
+            try (OutputStream output = writeTo.open(0)) {
                 ReduceReportingFrequency report = new ReduceReportingFrequency();
 
                 long remains = size;
-                int len;
 
-                do {
-                    len = input.read(buffer, 0, (int) Math.min(buffer.length, remains));
+                while (remains > 0) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), remains));
 
-                    remains -= len;
+                    int len = readSome(buffer);
 
-                    output.write(buffer, 0, len);
+                    buffer.flip();
 
+                    // 输出流支持 WritableByteChannel 时，数据直接从堆外内存写入文件
+                    BytesUtils.writeBuffer(output, buffer);
+
+                    remains -= len;
                     downloaded += len;
 
                     // 报告进度
@@ -118,48 +131,119 @@ public class McpatchProtocol implements UpdatingServer {
                     if (d > 0) {
                         callback.on(d, downloaded, size);
                     }
-
-                } while (remains > 0);
+                }
 
                 // 完成下载
                 callback.on(0, size, size);
             }
         } catch (IOException e) {
+            // 剩下的数据还留在连接里，这条连接已经没法继续用了，下次请求时重新建立连接
+            disconnect();
+
             if (fallback != null)
                 fallback.on(downloaded);
 
             throw new McpatchBusinessException(e);
+        } finally {
+            BufferPool.release(buffer);
         }
     }
 
     @Override
-    public void close() throws Exception {
-        if (socket != null)
-            socket.close();
-
-        socket = null;
+    public synchronized void close() throws Exception {
+        disconnect();
     }
 
     /**
      * 延迟建立连接
      */
     void lazyConnect() throws McpatchBusinessException {
-        if (socket != null)
+        if (channel != null)
             return;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(host, port));
-            socket.setSoTimeout(config.privateTimeout);
+            channel = SocketChannel.open();
+            channel.connect(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
 
-            input = socket.getInputStream();
-            output = socket.getOutputStream();
+            selector = Selector.open();
+            key = channel.register(selector, 0);
         } catch (IOException e) {
-            socket = null;
+            disconnect();
             throw new McpatchBusinessException("私有协议建立连接失败", e);
         }
     }
 
+    /**
+     * 断开连接，下次请求时会重新建立连接
+     */
+    void disconnect() {
+        try {
+            if (selector != null)
+                selector.close();
+
+            if (channel != null)
+                channel.close();
+        } catch (IOException ignored) { }
+
+        channel = null;
+        selector = null;
+        key = null;
+    }
+
+    /**
+     * 等待连接变成可读或者可写，超过私有协议的超时时间时抛出异常
+     *
+     * @param ops SelectionKey.OP_READ 或者 SelectionKey.OP_WRITE
+     */
+    void await(int ops) throws IOException {
+        key.interestOps(ops);
+
+        int ready = selector.select(config.privateTimeout);
+
+        selector.selectedKeys().clear();
+
+        if (ready == 0)
+            throw new SocketTimeoutException(String.format("私有协议(%d)等待数据超时", number));
+    }
+
+    /**
+     * 读取一些数据到 buf 里，至少读取一个字节
+     *
+     * @return 读取到的字节数
+     */
+    int readSome(ByteBuffer buf) throws IOException {
+        while (true) {
+            int len = channel.read(buf);
+
+            if (len == -1)
+                throw new EOFException(String.format("私有协议(%d)的连接被服务器关闭了", number));
+
+            if (len > 0)
+                return len;
+
+            await(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * 不断读取数据，直到填满 buf
+     */
+    void readFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            readSome(buf);
+    }
+
+    /**
+     * 发送 buf 里的所有数据
+     */
+    void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.write(buf) == 0)
+                await(SelectionKey.OP_WRITE);
+        }
+    }
+
     // 发送一个数据帧
     void sendDataFrame(byte[] data) throws McpatchBusinessException {
 //        String a = BytesUtils.bytesToString(BytesUtils.longToBytesLE(data.length));
@@ -169,11 +253,12 @@ public class McpatchProtocol implements UpdatingServer {
 
         try {
             // 先发送8字节的长度信息
-            output.write(BytesUtils.longToBytesLE(data.length));
+            writeFully(ByteBuffer.wrap(BytesUtils.longToBytesLE(data.length)));
 
             // 然后发送实际的数据
-            output.write(data);
+            writeFully(ByteBuffer.wrap(data));
         } catch (IOException e) {
+            disconnect();
             throw new McpatchBusinessException(e);
         }
     }
@@ -182,15 +267,16 @@ public class McpatchProtocol implements UpdatingServer {
      * 接受一个 long
      */
     long receiveLong() throws McpatchBusinessException {
-        byte[] data = new byte[8];
+        ByteBuffer data = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
 
         try {
-            BytesUtils.readAll(data, input);
+            readFully(data);
         } catch (IOException e) {
+            disconnect();
             throw new McpatchBusinessException(e);
         }
 
-        return BytesUtils.bytesLeToLong(data);
+        return data.getLong(0);
     }
 
     /**
@@ -209,9 +295,10 @@ public class McpatchProtocol implements UpdatingServer {
 
         // 然后发送下载范围
         try {
-            output.write(BytesUtils.longToBytesLE(range.start));
-            output.write(BytesUtils.longToBytesLE(range.end));
+            writeFully(ByteBuffer.wrap(BytesUtils.longToBytesLE(range.start)));
+            writeFully(ByteBuffer.wrap(BytesUtils.longToBytesLE(range.end)));
         } catch (IOException e) {
+            disconnect();
             throw new McpatchBusinessException(e);
         }
 
@@ -4,6 +4,7 @@ import com.github.balloonupdate.mcpatch.client.config.AppConfig;
 import com.github.balloonupdate.mcpatch.client.data.Range;
 import com.github.balloonupdate.mcpatch.client.exceptions.McpatchBusinessException;
 import com.github.balloonupdate.mcpatch.client.network.UpdatingServer;
+import com.github.balloonupdate.mcpatch.client.utils.BufferPool;
 import com.github.balloonupdate.mcpatch.client.utils.BytesUtils;
 import com.github.balloonupdate.mcpatch.client.utils.ReduceReportingFrequency;
 import com.github.sardine.impl.SardineException;
@@ -20,8 +21,7 @@ import org.apache.http.impl.client.HttpClientBuilder;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -122,7 +122,7 @@ public class WebdavProtocol implements UpdatingServer {
     }
 
     @Override
-    public void downloadFile(String path, Range range, String desc, Path writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
+    public void downloadStream(String path, Range range, String desc, OutputProvider writeTo, OnDownload callback, OnFail fallback) throws McpatchBusinessException {
         String url = buildURL(path);
 //        Log.debug("webdav request on $url, write to: ${writeTo.path}")
 
@@ -134,13 +134,11 @@ public class WebdavProtocol implements UpdatingServer {
         try (ContentLengthInputStream input = response.stream) {
             long contentLength = input.getLength();
 
-            if (desc.length() > -999)
-//                throw new IOException("hahahaha");
-            throw new McpatchBusinessException("bbbbbbbbbb");
-//                throw new McpatchBusinessException("qqqqqqqqqqq", new IOException("hahahaha"));
+            // 从缓冲区池里借一块内存
+            ByteBuffer pooled = BufferPool.acquireHeap();
 
-            try (OutputStream output = Files.newOutputStream(writeTo)) {
-                byte[] buf = new byte[BytesUtils.chooseBufferSize(contentLength)];
+            try (OutputStream output = writeTo.open(0)) {
+                byte[] buf = pooled.array();
 
                 ReduceReportingFrequency report = new ReduceReportingFrequency();
 
@@ -166,6 +164,8 @@ public class WebdavProtocol implements UpdatingServer {
 
                 // 完成下载
                 callback.on(0, contentLength, contentLength);
+            } finally {
+                BufferPool.release(pooled);
             }
         } catch (IOException e) {
             if (fallback != null)
@@ -175,6 +175,11 @@ public class WebdavProtocol implements UpdatingServer {
         }
     }
 
+    @Override
+    public boolean supportsConcurrentRequests() {
+        return true;
+    }
+
     @Override
     public void close() throws Exception {
 
@@ -192,6 +197,9 @@ public class WebdavProtocol implements UpdatingServer {
      * 构建一个适合webdav的自定义参数的HttpClient对象
      */
     static HttpClientBuilder builder(AppConfig config) {
+        // 最多同时下载 downloadThreadsMax 个文件，每个大文件又会拆成 downloadSegments 段同时下载
+        int connections = Math.max(config.downloadThreads, config.downloadThreadsMax) * Math.max(config.downloadSegments, 1);
+
         HttpClientBuilder builder = HttpClientBuilder.create()
                 .setDefaultSocketConfig(SocketConfig.custom()
                         .setSoTimeout(config.httpTimeout)
@@ -201,7 +209,10 @@ public class WebdavProtocol implements UpdatingServer {
                         .build())
                 .setDefaultRequestConfig(RequestConfig.custom()
                         .setConnectTimeout(config.httpTimeout)
-                        .build());
+                        .build())
+                // 默认每个主机只有 2 条连接，不够多个文件同时下载使用
+                .setMaxConnPerRoute(Math.max(connections, 2))
+                .setMaxConnTotal(Math.max(connections, 2) * 2);
 
         // 忽略证书验证
         if (config.ignoreSSLCertificate)
@@ -0,0 +1,158 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import com.github.balloonupdate.mcpatch.client.logging.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * 下载和计算校验值时共用的缓冲区池，所有缓冲区的大小都是 bufferSize<p>
+ * 池子里的缓冲区（包括借出去的和空闲的）加起来不会超过设定的上限。达到上限后再借就只能拿到一个不归池子管理的小缓冲区，
+ * 速度会慢一些，但不会等待，也不会因为分配大块内存导致游戏进程出现长时间的 GC 停顿甚至内存不足<p>
+ * 借出的缓冲区需要调用 release 归还，所有方法都是线程安全的
+ */
+public class BufferPool {
+    /**
+     * 池子里每个缓冲区的大小
+     */
+    public static final int bufferSize = 256 * 1024;
+
+    /**
+     * 池子满了之后临时分配的缓冲区的大小
+     */
+    static final int fallbackSize = 16 * 1024;
+
+    /**
+     * 空闲的堆内存缓冲区
+     */
+    static final ArrayDeque<ByteBuffer> freeHeap = new ArrayDeque<>();
+
+    /**
+     * 空闲的堆外内存缓冲区
+     */
+    static final ArrayDeque<ByteBuffer> freeDirect = new ArrayDeque<>();
+
+    /**
+     * 池子最多占用多少字节的内存
+     */
+    static long capacity = 16 * 1024 * 1024;
+
+    /**
+     * 池子目前一共分配了多少字节，包括借出去的和空闲的
+     */
+    static long allocated = 0;
+
+    /**
+     * 借出去还没归还的字节数
+     */
+    static long inUse = 0;
+
+    /**
+     * 借出去的字节数最多时达到了多少
+     */
+    static long peak = 0;
+
+    /**
+     * 因为池子满了而临时分配了多少次小缓冲区
+     */
+    static long fallbacks = 0;
+
+    /**
+     * 设置池子最多占用多少字节的内存，已经分配的空闲缓冲区超出部分会被丢弃
+     */
+    public static synchronized void setCapacity(long bytes) {
+        capacity = Math.max(0, bytes);
+
+        shrink(freeHeap, capacity);
+        shrink(freeDirect, capacity);
+    }
+
+    /**
+     * 借出一个堆内存缓冲区，可以通过 array() 当作 byte[] 使用，适合从 InputStream 里读取数据
+     */
+    public static ByteBuffer acquireHeap() {
+        return acquire(false);
+    }
+
+    /**
+     * 借出一个堆外内存缓冲区，字节序是小端，适合从 Channel 里读取数据
+     */
+    public static ByteBuffer acquireDirect() {
+        return acquire(true);
+    }
+
+    static synchronized ByteBuffer acquire(boolean direct) {
+        ArrayDeque<ByteBuffer> free = direct ? freeDirect : freeHeap;
+        ByteBuffer buf = free.poll();
+
+        if (buf == null) {
+            // 另一种缓冲区空闲着的话，先丢掉一个腾出位置
+            if (allocated + bufferSize > capacity)
+                shrink(direct ? freeHeap : freeDirect, capacity - bufferSize);
+
+            if (allocated + bufferSize > capacity) {
+                fallbacks += 1;
+
+                if (fallbacks == 1)
+                    Log.debug("缓冲区池已经达到上限，临时改用小缓冲区: " + getUsage());
+
+                return allocate(direct, fallbackSize);
+            }
+
+            buf = allocate(direct, bufferSize);
+            allocated += bufferSize;
+        }
+
+        inUse += bufferSize;
+        peak = Math.max(peak, inUse);
+
+        return buf;
+    }
+
+    /**
+     * 归还一个借出的缓冲区，池子满了时临时分配的小缓冲区会被直接丢弃
+     */
+    public static synchronized void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != bufferSize)
+            return;
+
+        inUse -= bufferSize;
+
+        buf.clear();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        // 借出去之后上限被调小了
+        if (allocated > capacity) {
+            allocated -= bufferSize;
+            return;
+        }
+
+        (buf.isDirect() ? freeDirect : freeHeap).push(buf);
+    }
+
+    /**
+     * 获取池子目前的使用情况，用于打印调试日志
+     */
+    public static synchronized String getUsage() {
+        return String.format("缓冲区池 已分配 %s / 上限 %s，使用中 %s，峰值 %s，空闲 %d 个堆内 %d 个堆外，临时分配 %d 次",
+                BytesUtils.convertBytes(allocated), BytesUtils.convertBytes(capacity), BytesUtils.convertBytes(inUse),
+                BytesUtils.convertBytes(peak), freeHeap.size(), freeDirect.size(), fallbacks);
+    }
+
+    /**
+     * 丢弃空闲的缓冲区，直到池子分配的总字节数不超过 limit 或者没有空闲的可以丢弃
+     */
+    static void shrink(ArrayDeque<ByteBuffer> free, long limit) {
+        while (allocated > limit && !free.isEmpty()) {
+            free.pop();
+            allocated -= bufferSize;
+        }
+    }
+
+    static ByteBuffer allocate(boolean direct, int size) {
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+
+        return buf.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -1,6 +1,8 @@
 package com.github.balloonupdate.mcpatch.client.utils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -72,40 +74,6 @@ public class BytesUtils {
         return result.toString();
     }
 
-    /**
-     * 根据文件大小选择合适的缓冲区大小
-     *
-     * @param size 文件大小
-     * @return 缓冲区大小
-     */
-    public static int chooseBufferSize(long size) {
-        if (size < 1 * mb) {
-            return 16 * kb;
-        } else if (size < 2 * mb) {
-            return 32 * kb;
-        } else if (size < 4 * mb) {
-            return 64 * kb;
-        } else if (size < 8 * mb) {
-            return 256 * kb;
-        } else if (size < 16 * mb) {
-            return 512 * kb;
-        } else if (size < 32 * mb) {
-            return 1 * mb;
-        } else if (size < 64 * mb) {
-            return 2 * mb;
-        } else if (size < 128 * mb) {
-            return 4 * mb;
-        } else if (size < 256 * mb) {
-            return 8 * mb;
-        } else if (size < 512 * mb) {
-            return 16 * mb;
-        } else if (size < 1 * gb) {
-            return 32 * mb;
-        } else {
-            return 64 * mb;
-        }
-    }
-
     /**
      * 将 long 转换成 8 字节小端 bytes
      */
@@ -160,6 +128,42 @@ public class BytesUtils {
         }
     }
 
+    /**
+     * 将 ByteBuffer 里 position 到 limit 之间的数据全部写入输出流，写完后 position 会移动到 limit<p>
+     * 输出流同时也是 WritableByteChannel 时直接写入 ByteBuffer，不经过堆内存中转，否则复制到 byte[] 里再写入
+     */
+    public static void writeBuffer(OutputStream output, ByteBuffer data) throws IOException {
+        if (output instanceof WritableByteChannel) {
+            WritableByteChannel channel = (WritableByteChannel) output;
+
+            while (data.hasRemaining())
+                channel.write(data);
+
+            return;
+        }
+
+        if (data.hasArray()) {
+            output.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+            return;
+        }
+
+        ByteBuffer pooled = BufferPool.acquireHeap();
+
+        try {
+            byte[] buf = pooled.array();
+
+            while (data.hasRemaining()) {
+                int len = Math.min(buf.length, data.remaining());
+
+                data.get(buf, 0, len);
+                output.write(buf, 0, len);
+            }
+        } finally {
+            BufferPool.release(pooled);
+        }
+    }
+
     /**
      * 将 bytes 转换为 [0, 16, 32]这样的格式
      */
@@ -0,0 +1,70 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 从文件的指定位置开始写入数据的输出流。使用的是定位写入，不会修改 channel 的 position，因此多个线程可以同时写入同一个文件的不同位置<p>
+ * 同时也是一个 WritableByteChannel，可以直接写入 ByteBuffer，堆外内存里的数据不需要再复制到堆内存里<p>
+ * 默认关闭这个输出流不会关闭 channel，channel 需要由创建者自己关闭
+ */
+public class ChannelOutputStream extends OutputStream implements WritableByteChannel {
+    /**
+     * 要写入的文件
+     */
+    FileChannel channel;
+
+    /**
+     * 下一个字节在文件里的位置
+     */
+    long position;
+
+    /**
+     * 关闭输出流时是否同时关闭 channel
+     */
+    boolean closeChannel;
+
+    public ChannelOutputStream(FileChannel channel, long position) {
+        this(channel, position, false);
+    }
+
+    public ChannelOutputStream(FileChannel channel, long position, boolean closeChannel) {
+        this.channel = channel;
+        this.position = position;
+        this.closeChannel = closeChannel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        write(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+
+        while (src.hasRemaining())
+            position += channel.write(src, position);
+
+        return len;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closeChannel)
+            channel.close();
+    }
+}
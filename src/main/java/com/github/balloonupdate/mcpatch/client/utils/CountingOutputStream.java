@@ -0,0 +1,52 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 统计成功写入了多少字节的输出流，只有下层输出流的 write 正常返回之后才会计数。写入 ByteBuffer 时会原样交给下层输出流
+ */
+public class CountingOutputStream extends FilterOutputStream implements WritableByteChannel {
+    /**
+     * 计数器
+     */
+    AtomicLong counter;
+
+    public CountingOutputStream(OutputStream out, AtomicLong counter) {
+        super(out);
+
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+
+        counter.addAndGet(len);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+
+        BytesUtils.writeBuffer(out, src);
+
+        counter.addAndGet(len);
+
+        return len;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+}
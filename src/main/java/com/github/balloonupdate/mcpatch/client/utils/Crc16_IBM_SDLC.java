@@ -0,0 +1,187 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * CRC-16/IBM-SDLC 算法，基于查表法（slicing-by-8）实现，每次可以同时处理 8 个字节
+ */
+class Crc16_IBM_SDLC {
+    /**
+     * 反射后的多项式，对应 0x1021
+     */
+    private static final int polynomial = 0x8408;
+    private static final int initialValue = 0xffff;
+    private static final int finalXorValue = 0xffff;
+
+    /**
+     * 8 张查找表，table[0] 是普通的单字节查找表，table[k] 代表某个字节后面再跟着 k 个零字节时的 crc 值
+     */
+    private static final int[][] table = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+
+            for (int j = 0; j < 8; j++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ polynomial : crc >>> 1;
+
+            table[0][i] = crc;
+        }
+
+        for (int i = 0; i < 256; i++) {
+            for (int k = 1; k < 8; k++) {
+                int prev = table[k - 1][i];
+                table[k][i] = (prev >>> 8) ^ table[0][prev & 0xff];
+            }
+        }
+    }
+
+    private int crc = initialValue;
+
+    public void reset() {
+        crc = initialValue;
+    }
+
+    public void update(byte[] data, int offset, int len) {
+        int[] t0 = table[0], t1 = table[1], t2 = table[2], t3 = table[3];
+        int[] t4 = table[4], t5 = table[5], t6 = table[6], t7 = table[7];
+
+        int c = crc;
+        int x = offset;
+        int end = offset + len;
+
+        // 每次处理 8 个字节，crc 只有 16 位，所以只和前两个字节异或
+        while (end - x >= 8) {
+            c ^= (data[x] & 0xff) | (data[x + 1] & 0xff) << 8;
+
+            c = t7[c & 0xff]
+                    ^ t6[(c >>> 8) & 0xff]
+                    ^ t5[data[x + 2] & 0xff]
+                    ^ t4[data[x + 3] & 0xff]
+                    ^ t3[data[x + 4] & 0xff]
+                    ^ t2[data[x + 5] & 0xff]
+                    ^ t1[data[x + 6] & 0xff]
+                    ^ t0[data[x + 7] & 0xff];
+
+            x += 8;
+        }
+
+        // 处理剩下不足 8 个的字节
+        while (x < end) {
+            c = (c >>> 8) ^ t0[(c ^ data[x]) & 0xff];
+            x += 1;
+        }
+
+        crc = c;
+    }
+
+    /**
+     * 从 ByteBuffer 的 position 到 limit 之间读取数据，不会修改 ByteBuffer 的 position
+     */
+    public void update(ByteBuffer data) {
+        ByteBuffer d = data.order() == ByteOrder.LITTLE_ENDIAN ? data : data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        int[] t0 = table[0], t1 = table[1], t2 = table[2], t3 = table[3];
+        int[] t4 = table[4], t5 = table[5], t6 = table[6], t7 = table[7];
+
+        int c = crc;
+        int x = d.position();
+        int end = d.limit();
+
+        // 每次处理 8 个字节，crc 只有 16 位，所以只和前两个字节异或
+        while (end - x >= 8) {
+            long v = d.getLong(x);
+
+            c ^= (int) (v & 0xffff);
+
+            c = t7[c & 0xff]
+                    ^ t6[(c >>> 8) & 0xff]
+                    ^ t5[(int) ((v >>> 16) & 0xff)]
+                    ^ t4[(int) ((v >>> 24) & 0xff)]
+                    ^ t3[(int) ((v >>> 32) & 0xff)]
+                    ^ t2[(int) ((v >>> 40) & 0xff)]
+                    ^ t1[(int) ((v >>> 48) & 0xff)]
+                    ^ t0[(int) (v >>> 56)];
+
+            x += 8;
+        }
+
+        // 处理剩下不足 8 个的字节
+        while (x < end) {
+            c = (c >>> 8) ^ t0[(c ^ d.get(x)) & 0xff];
+            x += 1;
+        }
+
+        crc = c;
+    }
+
+    public int getValue() {
+        return (crc ^ finalXorValue) & 0xFFFF;
+    }
+
+    /**
+     * x^(2^n) mod p 的预计算表，用来快速计算 x^(8*len) mod p
+     */
+    private static final int[] x2nTable = new int[64];
+
+    static {
+        int p = 1 << 14; // x^1
+
+        x2nTable[0] = p;
+
+        for (int n = 1; n < 64; n++)
+            x2nTable[n] = p = multModP(p, p);
+    }
+
+    /**
+     * 合并两段数据的 crc 值（和 zlib 的 crc32_combine 是同一个原理）
+     *
+     * @param crc1 第一段数据的 crc 值
+     * @param crc2 第二段数据的 crc 值
+     * @param len2 第二段数据的长度
+     * @return 两段数据首尾相接之后的 crc 值
+     */
+    public static int combine(int crc1, int crc2, long len2) {
+        return multModP(x2nModP(len2, 3), crc1) ^ crc2;
+    }
+
+    /**
+     * 计算 a(x) * b(x) mod p(x)，多项式都是反射表示的
+     */
+    private static int multModP(int a, int b) {
+        int m = 1 << 15;
+        int p = 0;
+
+        while (true) {
+            if ((a & m) != 0) {
+                p ^= b;
+
+                if ((a & (m - 1)) == 0)
+                    break;
+            }
+
+            m >>>= 1;
+            b = (b & 1) != 0 ? (b >>> 1) ^ polynomial : b >>> 1;
+        }
+
+        return p;
+    }
+
+    /**
+     * 计算 x^(n * 2^k) mod p(x)
+     */
+    private static int x2nModP(long n, int k) {
+        int p = 1 << 15; // x^0
+
+        while (n != 0) {
+            if ((n & 1) != 0)
+                p = multModP(x2nTable[k & 63], p);
+
+            n >>>= 1;
+            k += 1;
+        }
+
+        return p;
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 默认的校验算法，由 crc64 和 crc16 两部分组成，校验值的格式是 %016x_%04x，没有前缀
+ */
+public class Crc64Crc16Hash implements HashAlgorithm {
+    @Override
+    public String getName() {
+        return "crc64_crc16";
+    }
+
+    @Override
+    public Digest newDigest() {
+        return new CrcDigest();
+    }
+
+    /**
+     * crc64+crc16 的计算状态
+     */
+    public static class CrcDigest implements Digest {
+        final Crc64_XZ crc64 = new Crc64_XZ();
+        final Crc16_IBM_SDLC crc16 = new Crc16_IBM_SDLC();
+
+        @Override
+        public void reset() {
+            crc64.reset();
+            crc16.reset();
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int len) {
+            crc64.update(data, offset, len);
+            crc16.update(data, offset, len);
+        }
+
+        @Override
+        public void update(ByteBuffer data) {
+            crc64.update(data);
+            crc16.update(data);
+        }
+
+        @Override
+        public String getHash() {
+            return getResult().toString();
+        }
+
+        /**
+         * 获取目前为止喂入的所有数据的原始 crc 值
+         */
+        public Result getResult() {
+            return new Result(crc64.getValue(), crc16.getValue());
+        }
+    }
+
+    /**
+     * 代表一段数据的原始 crc 值，可以和后面紧挨着的另一段数据的 crc 值合并起来
+     */
+    public static class Result {
+        /**
+         * crc64 的值
+         */
+        public final long crc64;
+
+        /**
+         * crc16 的值
+         */
+        public final int crc16;
+
+        public Result(long crc64, int crc16) {
+            this.crc64 = crc64;
+            this.crc16 = crc16;
+        }
+
+        /**
+         * 合并后面紧挨着的另一段数据的 crc 值
+         *
+         * @param next 后一段数据的 crc 值
+         * @param nextLength 后一段数据的长度
+         * @return 两段数据首尾相接之后的 crc 值
+         */
+        public Result combine(Result next, long nextLength) {
+            long a = Crc64_XZ.combine(crc64, next.crc64, nextLength);
+            int b = Crc16_IBM_SDLC.combine(crc16, next.crc16, nextLength);
+
+            return new Result(a, b);
+        }
+
+        /**
+         * 格式化成校验值字符串
+         */
+        @Override
+        public String toString() {
+            return String.format("%016x", crc64) + "_" + String.format("%04x", crc16);
+        }
+    }
+}
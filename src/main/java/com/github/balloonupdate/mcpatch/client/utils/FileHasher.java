@@ -0,0 +1,163 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+
+/**
+ * 文件校验值计算器，每个对象都有自己独立的计算状态，读取文件用的缓冲区从 BufferPool 里借用，因此不同线程可以各自使用自己的对象同时计算<p>
+ * 同一个对象不是线程安全的，不能在多个线程里同时使用。默认使用 crc64+crc16 算法，可以通过 setAlgorithm 切换成其它算法
+ */
+public class FileHasher {
+    /**
+     * 当前使用的校验算法
+     */
+    HashAlgorithm algorithm;
+
+    /**
+     * 当前算法的计算状态
+     */
+    HashAlgorithm.Digest digest;
+
+    /**
+     * 用过的每种算法的计算状态，切换回来时可以直接复用
+     */
+    final HashMap<HashAlgorithm, HashAlgorithm.Digest> digests = new HashMap<>();
+
+    /**
+     * 文件大小达到此值时，改用 FileChannel + 堆外内存的方式读取文件
+     */
+    public static final long channelThreshold = 8 * 1024 * 1024;
+
+    public FileHasher() {
+        setAlgorithm(HashUtility.defaultAlgorithm);
+    }
+
+    /**
+     * 切换校验算法，切换后计算状态会被重置
+     */
+    public void setAlgorithm(HashAlgorithm algorithm) {
+        HashAlgorithm.Digest d = digests.get(algorithm);
+
+        if (d == null) {
+            d = algorithm.newDigest();
+            digests.put(algorithm, d);
+        }
+
+        this.algorithm = algorithm;
+        this.digest = d;
+
+        reset();
+    }
+
+    /**
+     * 获取当前使用的校验算法
+     */
+    public HashAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * 重置计算状态，准备开始计算新的数据
+     */
+    public void reset() {
+        digest.reset();
+    }
+
+    /**
+     * 增量地喂入一段数据
+     */
+    public void update(byte[] data, int offset, int len) {
+        digest.update(data, offset, len);
+    }
+
+    /**
+     * 增量地喂入 ByteBuffer 里 position 到 limit 之间的数据，不会修改 position
+     */
+    public void update(ByteBuffer data) {
+        digest.update(data);
+    }
+
+    /**
+     * 增量地喂入文件里 [start, end) 范围内的数据，使用的是定位读取，不会修改 channel 的 position，因此多个线程可以共用一个 channel
+     */
+    public void update(FileChannel channel, long start, long end) throws IOException {
+        // 堆外内存缓冲区，数据从文件直接读进来，不需要再复制到堆上
+        ByteBuffer buf = BufferPool.acquireDirect();
+
+        try {
+            long position = start;
+
+            while (position < end) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - position));
+
+                int read = channel.read(buf, position);
+
+                if (read == -1)
+                    throw new EOFException("文件在计算hash的过程中变短了");
+
+                position += read;
+
+                buf.flip();
+                update(buf);
+            }
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    /**
+     * 获取目前为止喂入的所有数据的校验值
+     */
+    public String getHash() {
+        return digest.getHash();
+    }
+
+    /**
+     * 获取目前为止喂入的所有数据的原始 crc 值，只有使用默认的 crc64+crc16 算法时才能调用
+     */
+    public Crc64Crc16Hash.Result getResult() {
+        if (!(digest instanceof Crc64Crc16Hash.CrcDigest))
+            throw new IllegalStateException("当前的校验算法不是 crc64+crc16: " + algorithm.getName());
+
+        return ((Crc64Crc16Hash.CrcDigest) digest).getResult();
+    }
+
+    /**
+     * 计算一个文件的校验值
+     */
+    public String calculate(Path file) throws IOException {
+        reset();
+
+        // 大文件走 FileChannel，省掉从内核到堆外再到堆内的多次复制
+        if (Files.size(file) >= channelThreshold) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                update(channel, 0, channel.size());
+            }
+
+            return getHash();
+        }
+
+        // 文件只读取一遍，每读出一块数据就喂给当前的算法
+        ByteBuffer pooled = BufferPool.acquireHeap();
+
+        try (InputStream stream = Files.newInputStream(file)) {
+            byte[] buf = pooled.array();
+            int read;
+
+            while ((read = stream.read(buf)) != -1)
+                update(buf, 0, read);
+        } finally {
+            BufferPool.release(pooled);
+        }
+
+        return getHash();
+    }
+}
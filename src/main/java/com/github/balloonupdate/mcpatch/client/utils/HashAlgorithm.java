@@ -0,0 +1,45 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 文件校验算法<p>
+ * 更新包里的校验值以 “算法名:” 开头时，会使用对应名字的算法来校验文件，没有前缀的校验值则使用默认的 crc64+crc16 算法。
+ * 新的算法需要通过 HashUtility.register 注册后才能被识别
+ */
+public interface HashAlgorithm {
+    /**
+     * 算法的名字，同时也是校验值的前缀
+     */
+    String getName();
+
+    /**
+     * 创建一个新的计算状态
+     */
+    Digest newDigest();
+
+    /**
+     * 代表一次校验值计算的状态，可以增量地喂入数据。同一个对象不是线程安全的
+     */
+    interface Digest {
+        /**
+         * 重置状态，准备开始计算新的数据
+         */
+        void reset();
+
+        /**
+         * 增量地喂入一段数据
+         */
+        void update(byte[] data, int offset, int len);
+
+        /**
+         * 增量地喂入 ByteBuffer 里 position 到 limit 之间的数据，不会修改 position
+         */
+        void update(ByteBuffer data);
+
+        /**
+         * 获取目前为止喂入的所有数据的校验值，格式和更新包里记录的校验值一样
+         */
+        String getHash();
+    }
+}
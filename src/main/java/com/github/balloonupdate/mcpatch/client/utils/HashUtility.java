@@ -1,160 +1,192 @@
 package com.github.balloonupdate.mcpatch.client.utils;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * 文件 hash 计算类，所有计算文件哈希值时都会调用此函数，可以在此函数中替换任意哈希算法
  */
 public class HashUtility {
-    static Crc64_XZ crc64 = new Crc64_XZ();
-    static Crc16_IBM_SDLC crc16 = new Crc16_IBM_SDLC();
+    /**
+     * 默认的校验算法，校验值没有 “算法名:” 前缀时使用
+     */
+    public static final HashAlgorithm defaultAlgorithm = new Crc64Crc16Hash();
 
     /**
-     * 计算一个文件的校验值（此函数不是线程安全的，多线程环境下需要注意）
+     * 所有已注册的校验算法，算法名 -> 算法
      */
-    public static String calculateHash(Path file) throws IOException {
-        crc64.reset();
-        crc16.reset();
+    static final ConcurrentHashMap<String, HashAlgorithm> algorithms = new ConcurrentHashMap<>();
 
-        crc64.update(file);
-        crc16.update(file);
+    static {
+        register(new Xxh3Hash());
+    }
 
-        long a = crc64.getValue();
-        long b = crc16.getValue();
+    /**
+     * 空闲的计算器对象池，计算器用完后会放回这里，下次直接复用里面的缓冲区
+     */
+    static final ConcurrentLinkedQueue<FileHasher> pool = new ConcurrentLinkedQueue<>();
 
-        String crc64 = String.format("%016x", a);
-        String crc16 = String.format("%04x", b);
+    /**
+     * 文件大小达到此值时，会把文件拆成多段，交给多个线程同时计算
+     */
+    public static final long parallelThreshold = 256 * 1024 * 1024;
 
-        return crc64 + "_" + crc16;
+    /**
+     * 注册一个校验算法，之后以这个算法名作为前缀的校验值就会使用这个算法来计算
+     */
+    public static void register(HashAlgorithm algorithm) {
+        algorithms.put(algorithm.getName(), algorithm);
     }
-}
-
-class Crc64_XZ {
-    private final long polynomial = 0x42f0e1eba9ea3693L;
-    private final long initialValue = 0xffffffffffffffffL;
-    private final long finalXorValue = 0xffffffffffffffffL;
-    private final boolean reflectInput = true;
-    private final boolean reflectOutput = true;
 
-    private long crc = initialValue;
+    /**
+     * 根据校验值的前缀找到对应的校验算法，没有前缀时返回默认算法
+     *
+     * @param hash 更新包里记录的校验值
+     * @return 对应的校验算法，不支持这种算法时返回 null
+     */
+    public static HashAlgorithm getAlgorithm(String hash) {
+        int index = hash.indexOf(':');
 
-    byte[] buf = new byte[128 * 1024];
+        if (index == -1)
+            return defaultAlgorithm;
 
-    public void reset() {
-        crc = initialValue;
+        return algorithms.get(hash.substring(0, index));
+    }
 
-        Arrays.fill(buf, (byte) 0);
+    /**
+     * 使用默认算法计算一个文件的校验值（此函数是线程安全的，多个线程可以同时调用）
+     */
+    public static String calculateHash(Path file) throws IOException {
+        return calculateHash(file, defaultAlgorithm);
     }
 
-    public void update(Path file) throws IOException {
-        try (BufferedInputStream stream = new BufferedInputStream(Files.newInputStream(file))) {
-            int read;
+    /**
+     * 使用指定的算法计算一个文件的校验值（此函数是线程安全的，多个线程可以同时调用）
+     */
+    public static String calculateHash(Path file, HashAlgorithm algorithm) throws IOException {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // 只有 crc 才能把多段的结果合并起来
+        if (algorithm == defaultAlgorithm && cores > 1 && Files.size(file) >= parallelThreshold)
+            return calculateHashParallel(file, cores);
 
-            while ((read = stream.read(buf)) != -1)
-                update(buf, 0, read);
+        FileHasher hasher = acquireHasher(algorithm);
+
+        try {
+            return hasher.calculate(file);
+        } finally {
+            releaseHasher(hasher);
         }
     }
 
-    public void update(byte[] data, int offset, int len) {
-        for (int x = offset; x < len; x++) {
-            byte b = data[x];
-            long value = b & 0xFF;
-            if (reflectInput) {
-                value = reflect(value, 8);
-            }
-            crc ^= (value << 56);
-            for (int i = 0; i < 8; i++) {
-                if ((crc & 0x8000000000000000L) != 0) {
-                    crc = (crc << 1) ^ polynomial;
-                } else {
-                    crc <<= 1;
+    /**
+     * 把文件拆成多段，每一段在公共线程池里单独计算 crc，最后再把每一段的 crc 合并起来。结果和 calculateHash 完全一样<p>
+     * 只支持默认的 crc64+crc16 算法
+     *
+     * @param file 要计算的文件
+     * @param parts 要拆成多少段
+     */
+    public static String calculateHashParallel(Path file, int parts) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            // 空文件不需要拆分
+            if (size == 0) {
+                FileHasher hasher = acquireHasher();
+
+                try {
+                    hasher.reset();
+
+                    return hasher.getHash();
+                } finally {
+                    releaseHasher(hasher);
                 }
             }
-        }
-    }
 
-    public long getValue() {
-        long result = crc;
-        if (reflectOutput) {
-            result = reflect(result, 64);
-        }
-        return result ^ finalXorValue;
-    }
+            long segment = Math.max((size + parts - 1) / parts, 1);
 
-    private long reflect(long value, int bits) {
-        long reflected = 0;
-        for (int i = 0; i < bits; i++) {
-            if ((value & (1L << i)) != 0) {
-                reflected |= (1L << (bits - 1 - i));
-            }
-        }
-        return reflected;
-    }
-}
+            List<ForkJoinTask<Crc64Crc16Hash.Result>> tasks = new ArrayList<>();
 
-class Crc16_IBM_SDLC {
-    private final int polynomial = 0x1021;
-    private final int initialValue = 0xffff;
-    private final int finalXorValue = 0xffff;
-    private final boolean reflectInput = true;
-    private final boolean reflectOutput = true;
+            for (long start = 0; start < size; start += segment) {
+                long from = start;
+                long to = Math.min(start + segment, size);
 
-    private int crc = initialValue;
+                tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                    FileHasher hasher = acquireHasher();
 
-    byte[] buf = new byte[128 * 1024];
+                    try {
+                        hasher.reset();
+                        hasher.update(channel, from, to);
 
-    public void reset() {
-        crc = initialValue;
+                        return hasher.getResult();
+                    } finally {
+                        releaseHasher(hasher);
+                    }
+                }));
+            }
 
-        Arrays.fill(buf, (byte) 0);
-    }
+            Crc64Crc16Hash.Result result = null;
 
-    public void update(Path file) throws IOException {
-        try (BufferedInputStream stream = new BufferedInputStream(Files.newInputStream(file))) {
-            int read;
+            // 按顺序把每一段的 crc 合并起来
+            for (int i = 0; i < tasks.size(); i++) {
+                long len = Math.min(segment, size - i * segment);
 
-            while ((read = stream.read(buf)) != -1)
-                update(buf, 0, read);
-        }
-    }
+                Crc64Crc16Hash.Result part;
 
-    public void update(byte[] data, int offset, int len) {
-        for (int x = offset; x < len; x++) {
-            byte b = data[x];
-            int value = b & 0xFF;
-            if (reflectInput) {
-                value = reflect(value, 8);
-            }
-            crc ^= (value << 8);
-            for (int i = 0; i < 8; i++) {
-                if ((crc & 0x8000) != 0) {
-                    crc = (crc << 1) ^ polynomial;
-                } else {
-                    crc <<= 1;
+                try {
+                    part = tasks.get(i).get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("计算文件hash时被打断");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+
+                    throw new IOException(e.getCause());
                 }
+
+                result = i == 0 ? part : result.combine(part, len);
             }
+
+            return result.toString();
         }
     }
 
-    public int getValue() {
-        int result = crc;
-        if (reflectOutput) {
-            result = reflect(result, 16);
-        }
-        return (result ^ finalXorValue) & 0xFFFF;
+    /**
+     * 从对象池里借出一个使用默认算法的计算器，池子里没有的话就新建一个。用完后需要调用 releaseHasher 归还
+     */
+    public static FileHasher acquireHasher() {
+        return acquireHasher(defaultAlgorithm);
     }
 
-    private int reflect(int value, int bits) {
-        int reflected = 0;
-        for (int i = 0; i < bits; i++) {
-            if ((value & (1 << i)) != 0) {
-                reflected |= (1 << (bits - 1 - i));
-            }
-        }
-        return reflected;
+    /**
+     * 从对象池里借出一个使用指定算法的计算器，池子里没有的话就新建一个。用完后需要调用 releaseHasher 归还
+     */
+    public static FileHasher acquireHasher(HashAlgorithm algorithm) {
+        FileHasher hasher = pool.poll();
+
+        if (hasher == null)
+            hasher = new FileHasher();
+
+        hasher.setAlgorithm(algorithm);
+
+        return hasher;
     }
-}
\ No newline at end of file
+
+    /**
+     * 将计算器归还到对象池里
+     */
+    public static void releaseHasher(FileHasher hasher) {
+        pool.offer(hasher);
+    }
+}
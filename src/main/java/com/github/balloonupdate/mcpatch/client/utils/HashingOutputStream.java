@@ -0,0 +1,52 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 在写入数据的同时计算校验值的输出流。写入 ByteBuffer 时会原样交给下层输出流，不经过堆内存中转
+ */
+public class HashingOutputStream extends FilterOutputStream implements WritableByteChannel {
+    /**
+     * 校验值计算器
+     */
+    FileHasher hasher;
+
+    public HashingOutputStream(OutputStream out, FileHasher hasher) {
+        super(out);
+
+        this.hasher = hasher;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+
+        hasher.update(b, off, len);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        // 写入会移动 position，所以先记下这部分数据，写入成功后再计算校验值
+        ByteBuffer data = src.duplicate();
+
+        BytesUtils.writeBuffer(out, src);
+
+        hasher.update(data);
+
+        return data.remaining();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+}
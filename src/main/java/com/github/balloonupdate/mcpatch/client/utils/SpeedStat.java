@@ -4,7 +4,7 @@ import java.util.ArrayDeque;
 import java.util.Stack;
 
 /**
- * 代表一个速度统计，用来计算下载文件时的网速
+ * 代表一个速度统计，用来计算下载文件时的网速。多个线程可以同时调用
  */
 public class SpeedStat {
     /**
@@ -32,7 +32,7 @@ public class SpeedStat {
     }
 
     // 获取采样速度
-    public long sampleSpeed() {
+    public synchronized long sampleSpeed() {
         // 如果数据不够，直接返回0
         if (frames.size() <= 2) {
             return 0;
@@ -61,7 +61,7 @@ public class SpeedStat {
     }
 
     // 增加了新的字节数
-    public void feed(long bytes) {
+    public synchronized void feed(long bytes) {
         long now = System.currentTimeMillis();
 
         if (!frames.isEmpty()) {
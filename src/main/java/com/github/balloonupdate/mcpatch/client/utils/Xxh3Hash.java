@@ -0,0 +1,522 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * XXH3 128 位校验算法，校验值的格式是 xxh3-128: 后面跟 32 位十六进制数（高 64 位在前）<p>
+ * 和 xxHash 0.8 的 XXH3_128bits（seed 为 0，使用默认 secret）计算结果一致，比 crc 算法快很多，适合大文件
+ */
+public class Xxh3Hash implements HashAlgorithm {
+    /**
+     * 算法的名字，也是校验值的前缀
+     */
+    public static final String name = "xxh3-128";
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Digest newDigest() {
+        return new Xxh3Digest();
+    }
+
+    static final long PRIME32_1 = 0x9E3779B1L;
+    static final long PRIME32_2 = 0x85EBCA77L;
+    static final long PRIME32_3 = 0xC2B2AE3DL;
+    static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    static final long PRIME64_3 = 0x165667B19E3779F9L;
+    static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+    static final long PRIME_MX1 = 0x165667919E3779F9L;
+    static final long PRIME_MX2 = 0x9FB21C651E98DF25L;
+
+    /**
+     * 一个 stripe 的长度
+     */
+    static final int STRIPE_LEN = 64;
+
+    /**
+     * 一个 block 里的 stripe 数量，每处理完一个 block 就要打乱一次累加器
+     */
+    static final int STRIPES_PER_BLOCK = (192 - STRIPE_LEN) / 8;
+
+    /**
+     * 流式计算时的缓冲区大小
+     */
+    static final int BUFFER_SIZE = 256;
+
+    /**
+     * 默认的 secret
+     */
+    static final byte[] SECRET = hex(
+            "b8fe6c3923a44bbe7c01812cf721ad1cded46de9839097db7240a4a4b7b3671f" +
+            "cb79e64eccc0e578825ad07dccff7221b8084674f743248ee03590e6813a264c" +
+            "3c2852bb91c300cb88d0658b1b532ea371644897a20df94e3819ef46a9deacd8" +
+            "a8fa763fe39c343ff9dcbbc7c70b4f1d8a51e04bcdb45931c89f7ec9d9787364" +
+            "eac5ac8334d3ebc3c581a0fffa1363eb170ddd51b7f0da49d316552629d4689e" +
+            "2b16be587d47a1fc8ff8b8d17ad031ce45cb3a8f95160428afd7fbcabb4b407e"
+    );
+
+    /**
+     * 按 8 字节对齐预先读好的 secret，累加和打乱时使用
+     */
+    static final long[] SECRET64 = new long[SECRET.length / 8];
+
+    static {
+        for (int i = 0; i < SECRET64.length; i++)
+            SECRET64[i] = readLE64(SECRET, i * 8);
+    }
+
+    /**
+     * 流式计算 XXH3 128 位校验值的状态
+     */
+    public static class Xxh3Digest implements Digest {
+        /**
+         * 累加器
+         */
+        final long[] acc = new long[8];
+
+        /**
+         * 还没处理的数据，总是至少保留 1 个字节，最后一个 stripe 要留到 getHash() 时再处理
+         */
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        /**
+         * buffer 里的有效数据长度
+         */
+        int bufferedSize;
+
+        /**
+         * 当前 block 里已经处理过的 stripe 数量
+         */
+        int stripesSoFar;
+
+        /**
+         * 目前为止喂入的数据总长度
+         */
+        long totalLen;
+
+        /**
+         * 从非堆内存的 ByteBuffer 里读数据时用的中转缓冲区
+         */
+        byte[] scratch = null;
+
+        public Xxh3Digest() {
+            reset();
+        }
+
+        @Override
+        public void reset() {
+            initAcc(acc);
+            bufferedSize = 0;
+            stripesSoFar = 0;
+            totalLen = 0;
+        }
+
+        @Override
+        public void update(byte[] data, int offset, int len) {
+            totalLen += len;
+
+            // 数据不多时先攒在缓冲区里
+            if (bufferedSize + len <= BUFFER_SIZE) {
+                System.arraycopy(data, offset, buffer, bufferedSize, len);
+                bufferedSize += len;
+                return;
+            }
+
+            int end = offset + len;
+
+            // 先把缓冲区填满并处理掉
+            if (bufferedSize > 0) {
+                int load = BUFFER_SIZE - bufferedSize;
+                System.arraycopy(data, offset, buffer, bufferedSize, load);
+                offset += load;
+
+                stripesSoFar = consumeStripes(acc, stripesSoFar, buffer, 0, BUFFER_SIZE / STRIPE_LEN);
+                bufferedSize = 0;
+            }
+
+            // 直接处理输入的数据，但要保证最后至少留下 1 个字节
+            if (end - offset > BUFFER_SIZE) {
+                do {
+                    stripesSoFar = consumeStripes(acc, stripesSoFar, data, offset, BUFFER_SIZE / STRIPE_LEN);
+                    offset += BUFFER_SIZE;
+                } while (end - offset > BUFFER_SIZE);
+
+                // 留下最后一个 stripe，剩余数据不足一个 stripe 时 getHash() 需要用到
+                System.arraycopy(data, offset - STRIPE_LEN, buffer, BUFFER_SIZE - STRIPE_LEN, STRIPE_LEN);
+            }
+
+            System.arraycopy(data, offset, buffer, 0, end - offset);
+            bufferedSize = end - offset;
+        }
+
+        @Override
+        public void update(ByteBuffer data) {
+            if (data.hasArray()) {
+                update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                return;
+            }
+
+            if (scratch == null)
+                scratch = new byte[64 * 1024];
+
+            ByteBuffer d = data.duplicate();
+
+            while (d.hasRemaining()) {
+                int len = Math.min(d.remaining(), scratch.length);
+                d.get(scratch, 0, len);
+                update(scratch, 0, len);
+            }
+        }
+
+        @Override
+        public String getHash() {
+            long low;
+            long high;
+
+            if (totalLen <= 240) {
+                long[] h = hashShort(buffer, 0, (int) totalLen);
+                low = h[0];
+                high = h[1];
+            } else {
+                // 在副本上收尾，不影响后续继续喂入数据
+                long[] a = acc.clone();
+                byte[] lastStripe;
+                int lastOffset;
+
+                if (bufferedSize >= STRIPE_LEN) {
+                    int nbStripes = (bufferedSize - 1) / STRIPE_LEN;
+                    consumeStripes(a, stripesSoFar, buffer, 0, nbStripes);
+
+                    lastStripe = buffer;
+                    lastOffset = bufferedSize - STRIPE_LEN;
+                } else {
+                    // 剩余数据不足一个 stripe，需要从上一段数据的末尾借一些过来
+                    int catchup = STRIPE_LEN - bufferedSize;
+                    lastStripe = new byte[STRIPE_LEN];
+                    lastOffset = 0;
+
+                    System.arraycopy(buffer, BUFFER_SIZE - catchup, lastStripe, 0, catchup);
+                    System.arraycopy(buffer, 0, lastStripe, catchup, bufferedSize);
+                }
+
+                accumulate512(a, lastStripe, lastOffset, SECRET, SECRET.length - STRIPE_LEN - 7);
+
+                low = mergeAccs(a, 11, totalLen * PRIME64_1);
+                high = mergeAccs(a, SECRET.length - 64 - 11, ~(totalLen * PRIME64_2));
+            }
+
+            return name + ":" + String.format("%016x", high) + String.format("%016x", low);
+        }
+    }
+
+    /**
+     * 初始化累加器
+     */
+    static void initAcc(long[] acc) {
+        acc[0] = PRIME32_3;
+        acc[1] = PRIME64_1;
+        acc[2] = PRIME64_2;
+        acc[3] = PRIME64_3;
+        acc[4] = PRIME64_4;
+        acc[5] = PRIME32_2;
+        acc[6] = PRIME64_5;
+        acc[7] = PRIME32_1;
+    }
+
+    /**
+     * 处理若干个 stripe，跨过 block 边界时打乱累加器
+     *
+     * @return 处理之后当前 block 里已经处理过的 stripe 数量
+     */
+    static int consumeStripes(long[] acc, int stripesSoFar, byte[] data, int offset, int nbStripes) {
+        if (STRIPES_PER_BLOCK - stripesSoFar <= nbStripes) {
+            int toEnd = STRIPES_PER_BLOCK - stripesSoFar;
+            int after = nbStripes - toEnd;
+
+            accumulate(acc, data, offset, stripesSoFar, toEnd);
+            scrambleAcc(acc);
+            accumulate(acc, data, offset + toEnd * STRIPE_LEN, 0, after);
+
+            return after;
+        }
+
+        accumulate(acc, data, offset, stripesSoFar, nbStripes);
+
+        return stripesSoFar + nbStripes;
+    }
+
+    /**
+     * 连续累加若干个 stripe，每个 stripe 使用的 secret 往后错开 8 个字节
+     */
+    static void accumulate(long[] acc, byte[] data, int offset, int firstStripe, int nbStripes) {
+        for (int n = 0; n < nbStripes; n++) {
+            int p = offset + n * STRIPE_LEN;
+            int s = firstStripe + n;
+
+            for (int i = 0; i < 8; i++) {
+                long value = readLE64(data, p + i * 8);
+                long key = value ^ SECRET64[s + i];
+
+                acc[i ^ 1] += value;
+                acc[i] += (key & 0xFFFFFFFFL) * (key >>> 32);
+            }
+        }
+    }
+
+    /**
+     * 累加一个 stripe，secret 的位置可以不对齐
+     */
+    static void accumulate512(long[] acc, byte[] data, int offset, byte[] secret, int secretOffset) {
+        for (int i = 0; i < 8; i++) {
+            long value = readLE64(data, offset + i * 8);
+            long key = value ^ readLE64(secret, secretOffset + i * 8);
+
+            acc[i ^ 1] += value;
+            acc[i] += (key & 0xFFFFFFFFL) * (key >>> 32);
+        }
+    }
+
+    /**
+     * 打乱累加器
+     */
+    static void scrambleAcc(long[] acc) {
+        int k = (SECRET.length - STRIPE_LEN) / 8;
+
+        for (int i = 0; i < 8; i++) {
+            long a = acc[i];
+            a ^= a >>> 47;
+            a ^= SECRET64[k + i];
+            a *= PRIME32_1;
+            acc[i] = a;
+        }
+    }
+
+    /**
+     * 将累加器合并成一个 64 位的值
+     */
+    static long mergeAccs(long[] acc, int secretOffset, long start) {
+        long result = start;
+
+        for (int i = 0; i < 4; i++) {
+            int s = secretOffset + i * 16;
+            result += mul128Fold64(acc[i * 2] ^ readLE64(SECRET, s), acc[i * 2 + 1] ^ readLE64(SECRET, s + 8));
+        }
+
+        return avalanche(result);
+    }
+
+    /**
+     * 计算不超过 240 字节的数据的校验值
+     *
+     * @return {低 64 位, 高 64 位}
+     */
+    static long[] hashShort(byte[] data, int offset, int len) {
+        if (len <= 16) {
+            if (len > 8)
+                return hash9to16(data, offset, len);
+
+            if (len >= 4)
+                return hash4to8(data, offset, len);
+
+            if (len > 0)
+                return hash1to3(data, offset, len);
+
+            return new long[] {
+                    avalanche64(readLE64(SECRET, 64) ^ readLE64(SECRET, 72)),
+                    avalanche64(readLE64(SECRET, 80) ^ readLE64(SECRET, 88)),
+            };
+        }
+
+        if (len <= 128)
+            return hash17to128(data, offset, len);
+
+        return hash129to240(data, offset, len);
+    }
+
+    static long[] hash1to3(byte[] data, int offset, int len) {
+        int c1 = data[offset] & 0xFF;
+        int c2 = data[offset + (len >> 1)] & 0xFF;
+        int c3 = data[offset + len - 1] & 0xFF;
+
+        int combinedl = (c1 << 16) | (c2 << 24) | c3 | (len << 8);
+        int combinedh = Integer.rotateLeft(Integer.reverseBytes(combinedl), 13);
+
+        long bitflipl = readLE32(SECRET, 0) ^ readLE32(SECRET, 4);
+        long bitfliph = readLE32(SECRET, 8) ^ readLE32(SECRET, 12);
+
+        long low = avalanche64((combinedl & 0xFFFFFFFFL) ^ bitflipl);
+        long high = avalanche64((combinedh & 0xFFFFFFFFL) ^ bitfliph);
+
+        return new long[] { low, high };
+    }
+
+    static long[] hash4to8(byte[] data, int offset, int len) {
+        long inputLo = readLE32(data, offset);
+        long inputHi = readLE32(data, offset + len - 4);
+        long input64 = inputLo + (inputHi << 32);
+
+        long bitflip = readLE64(SECRET, 16) ^ readLE64(SECRET, 24);
+        long keyed = input64 ^ bitflip;
+
+        long m = PRIME64_1 + ((long) len << 2);
+        long low = keyed * m;
+        long high = multiplyHigh(keyed, m);
+
+        high += low << 1;
+        low ^= high >>> 3;
+        low ^= low >>> 35;
+        low *= PRIME_MX2;
+        low ^= low >>> 28;
+        high = avalanche(high);
+
+        return new long[] { low, high };
+    }
+
+    static long[] hash9to16(byte[] data, int offset, int len) {
+        long bitflipl = readLE64(SECRET, 32) ^ readLE64(SECRET, 40);
+        long bitfliph = readLE64(SECRET, 48) ^ readLE64(SECRET, 56);
+
+        long inputLo = readLE64(data, offset);
+        long inputHi = readLE64(data, offset + len - 8);
+
+        long k = inputLo ^ inputHi ^ bitflipl;
+        long mLow = k * PRIME64_1;
+        long mHigh = multiplyHigh(k, PRIME64_1);
+
+        mLow += (long) (len - 1) << 54;
+        inputHi ^= bitfliph;
+        mHigh += inputHi + (inputHi & 0xFFFFFFFFL) * (PRIME32_2 - 1);
+        mLow ^= Long.reverseBytes(mHigh);
+
+        long hLow = mLow * PRIME64_2;
+        long hHigh = multiplyHigh(mLow, PRIME64_2) + mHigh * PRIME64_2;
+
+        return new long[] { avalanche(hLow), avalanche(hHigh) };
+    }
+
+    static long[] hash17to128(byte[] data, int offset, int len) {
+        long[] acc = { len * PRIME64_1, 0 };
+
+        if (len > 32) {
+            if (len > 64) {
+                if (len > 96)
+                    mix32B(acc, data, offset + 48, offset + len - 64, 96);
+
+                mix32B(acc, data, offset + 32, offset + len - 48, 64);
+            }
+
+            mix32B(acc, data, offset + 16, offset + len - 32, 32);
+        }
+
+        mix32B(acc, data, offset, offset + len - 16, 0);
+
+        return finish128(acc, len);
+    }
+
+    static long[] hash129to240(byte[] data, int offset, int len) {
+        long[] acc = { len * PRIME64_1, 0 };
+
+        for (int i = 0; i < 4; i++)
+            mix32B(acc, data, offset + 32 * i, offset + 32 * i + 16, 32 * i);
+
+        acc[0] = avalanche(acc[0]);
+        acc[1] = avalanche(acc[1]);
+
+        int nbRounds = len / 32;
+
+        for (int i = 4; i < nbRounds; i++)
+            mix32B(acc, data, offset + 32 * i, offset + 32 * i + 16, 3 + 32 * (i - 4));
+
+        mix32B(acc, data, offset + len - 16, offset + len - 32, 136 - 17 - 16);
+
+        return finish128(acc, len);
+    }
+
+    static long[] finish128(long[] acc, int len) {
+        long low = acc[0] + acc[1];
+        long high = acc[0] * PRIME64_1 + acc[1] * PRIME64_4 + len * PRIME64_2;
+
+        return new long[] { avalanche(low), -avalanche(high) };
+    }
+
+    static void mix32B(long[] acc, byte[] data, int input1, int input2, int secretOffset) {
+        acc[0] += mix16B(data, input1, secretOffset);
+        acc[0] ^= readLE64(data, input2) + readLE64(data, input2 + 8);
+        acc[1] += mix16B(data, input2, secretOffset + 16);
+        acc[1] ^= readLE64(data, input1) + readLE64(data, input1 + 8);
+    }
+
+    static long mix16B(byte[] data, int offset, int secretOffset) {
+        return mul128Fold64(
+                readLE64(data, offset) ^ readLE64(SECRET, secretOffset),
+                readLE64(data, offset + 8) ^ readLE64(SECRET, secretOffset + 8)
+        );
+    }
+
+    static long mul128Fold64(long a, long b) {
+        return (a * b) ^ multiplyHigh(a, b);
+    }
+
+    /**
+     * 无符号 64 位乘法结果的高 64 位
+     */
+    static long multiplyHigh(long a, long b) {
+        long a0 = a & 0xFFFFFFFFL;
+        long a1 = a >>> 32;
+        long b0 = b & 0xFFFFFFFFL;
+        long b1 = b >>> 32;
+
+        long p01 = a0 * b1;
+        long middle = a1 * b0 + ((a0 * b0) >>> 32) + (p01 & 0xFFFFFFFFL);
+
+        return a1 * b1 + (middle >>> 32) + (p01 >>> 32);
+    }
+
+    static long avalanche(long h) {
+        h ^= h >>> 37;
+        h *= PRIME_MX1;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    static long avalanche64(long h) {
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    static long readLE64(byte[] b, int i) {
+        return (b[i] & 0xFFL)
+                | (b[i + 1] & 0xFFL) << 8
+                | (b[i + 2] & 0xFFL) << 16
+                | (b[i + 3] & 0xFFL) << 24
+                | (b[i + 4] & 0xFFL) << 32
+                | (b[i + 5] & 0xFFL) << 40
+                | (b[i + 6] & 0xFFL) << 48
+                | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    static long readLE32(byte[] b, int i) {
+        return (b[i] & 0xFFL)
+                | (b[i + 1] & 0xFFL) << 8
+                | (b[i + 2] & 0xFFL) << 16
+                | (b[i + 3] & 0xFFL) << 24;
+    }
+
+    static byte[] hex(String s) {
+        byte[] result = new byte[s.length() / 2];
+
+        for (int i = 0; i < result.length; i++)
+            result[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+
+        return result;
+    }
+}
@@ -0,0 +1,374 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.ChangeList;
+import com.github.balloonupdate.mcpatch.client.data.FileChange;
+import com.github.balloonupdate.mcpatch.client.data.PathTable;
+import com.github.balloonupdate.mcpatch.client.data.TempMoveFile;
+import com.github.balloonupdate.mcpatch.client.data.TempUpdateFile;
+import com.github.balloonupdate.mcpatch.client.data.TempVersionMeta;
+import com.github.balloonupdate.mcpatch.client.data.VersionMeta;
+import com.github.balloonupdate.mcpatch.client.utils.RuntimeAssert;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ChangeSet 和 ParallelChangeMerger 的合并结果必须和原来直接在几个 ArrayList 上合并的结果完全一样，
+ * 包括列表里元素的顺序、重复的元素、临时文件的位置，以及断言失败的情况
+ */
+public class ChangeSetTest {
+    static final Path tempDir = Paths.get("temp");
+
+    /**
+     * 随机生成的文件变动历史，路径很少，各种文件变动会频繁地互相影响
+     */
+    @Test
+    public void randomHistoriesMatchListMerge() {
+        Random random = new Random(1);
+        int failures = 0;
+
+        for (int it = 0; it < 5000; it++) {
+            History history = new History();
+            int pool = 1 + random.nextInt(8);
+
+            for (int v = 0, versions = 1 + random.nextInt(5); v < versions; v++) {
+                List<FileChange> changes = new ArrayList<>();
+
+                for (int c = 0, count = random.nextInt(12); c < count; c++)
+                    changes.add(randomChange(random, "p" + random.nextInt(pool), "p" + random.nextInt(pool * 2)));
+
+                history.version(changes.toArray(new FileChange[0]));
+            }
+
+            String expected = history.listMerge();
+
+            if (expected.equals("assert failed"))
+                failures += 1;
+
+            assertEquals(expected, history.changeSet());
+            assertEquals(expected, history.parallel(1 + random.nextInt(4)));
+        }
+
+        // 确认断言失败的情况也被覆盖到了
+        assertTrue(failures > 100);
+    }
+
+    /**
+     * 移动还没有下载的文件时只修改下载路径，临时文件的位置不变，也不会产生移动文件
+     */
+    @Test
+    public void moveOfPendingUpdate() {
+        History history = new History()
+                .version(update("a", "h1"))
+                .version(move("a", "b"), update("c", "h2"), move("c", "d"));
+
+        Result result = history.run();
+
+        assertEquals(2, result.updateFiles.size());
+        assertEquals("b", result.updateFiles.get(0).path);
+        assertEquals(tempDir.resolve("a.temp"), result.updateFiles.get(0).getTempPath());
+        assertEquals("d", result.updateFiles.get(1).path);
+        assertEquals(tempDir.resolve("c.temp"), result.updateFiles.get(1).getTempPath());
+        assertEquals(Collections.emptyList(), result.moveFiles);
+        assertEquals(history.listMerge(), history.changeSet());
+    }
+
+    /**
+     * 先创建再删除的文件夹，以及先删除再创建的文件夹，都会互相抵消
+     */
+    @Test
+    public void createDeleteCancellation() {
+        History history = new History()
+                .version(createFolder("a"), deleteFolder("b"))
+                .version(deleteFolder("a"), createFolder("b"), createFolder("c"));
+
+        Result result = history.run();
+
+        assertEquals(Collections.singletonList("c"), result.createFolders);
+        assertEquals(Collections.emptyList(), result.deleteFolders);
+        assertEquals(history.listMerge(), history.changeSet());
+    }
+
+    /**
+     * 刚下载又马上要被删的文件不用下载；删除之后又更新的文件不用删除
+     */
+    @Test
+    public void deleteAfterUpdate() {
+        History history = new History()
+                .version(update("a", "h1"), deleteFile("b"))
+                .version(update("a", "h2"), deleteFile("a"), update("b", "h3"));
+
+        Result result = history.run();
+
+        assertEquals(1, result.updateFiles.size());
+        assertEquals("b", result.updateFiles.get(0).path);
+        assertEquals("h3", result.updateFiles.get(0).hash);
+        assertEquals(Collections.singletonList("a"), result.deleteFiles);
+        assertEquals(history.listMerge(), history.changeSet());
+    }
+
+    /**
+     * 重复创建文件夹、移动文件的 from 或者 to 冲突时，和原来一样断言失败
+     */
+    @Test
+    public void runtimeAssertFailures() {
+        List<History> histories = Arrays.asList(
+                new History().version(createFolder("a")).version(createFolder("a")),
+                new History().version(move("a", "c"), move("b", "c")),
+                new History().version(move("a", "b"), move("a", "c")),
+                new History().version(move("x", "c"), update("a", "h1"), move("a", "c"))
+        );
+
+        for (History history : histories) {
+            RuntimeException e = assertThrows(RuntimeException.class, history::run);
+
+            assertEquals("assert failed", e.getMessage());
+            assertEquals("assert failed", history.listMerge());
+            assertEquals("assert failed", history.parallel(2));
+        }
+    }
+
+    static FileChange randomChange(Random random, String path, String target) {
+        switch (random.nextInt(5)) {
+            case 0:
+                return createFolder(path);
+            case 1: {
+                String[] hashes = { "h", String.format("%016x_%04x", random.nextLong(), random.nextInt(65536)), "xxh3-128:abc",
+                        "ABCDEF0123456789_ABCD", "0000000000000000_0000", "ffffffffffffffff_ffff" };
+
+                FileChange.UpdateFile op = update(path, hashes[random.nextInt(hashes.length)]);
+                op.len = random.nextLong();
+                op.modified = random.nextInt();
+                op.offset = random.nextInt(100);
+                return op;
+            }
+            case 2:
+                return deleteFolder(path);
+            case 3:
+                return deleteFile(path);
+            default:
+                return move(path, target);
+        }
+    }
+
+    static FileChange.CreateFolder createFolder(String path) {
+        FileChange.CreateFolder op = new FileChange.CreateFolder();
+        op.path = path;
+        return op;
+    }
+
+    static FileChange.UpdateFile update(String path, String hash) {
+        FileChange.UpdateFile op = new FileChange.UpdateFile();
+        op.path = path;
+        op.hash = hash;
+        op.len = 10;
+        op.modified = 1000;
+        return op;
+    }
+
+    static FileChange.DeleteFolder deleteFolder(String path) {
+        FileChange.DeleteFolder op = new FileChange.DeleteFolder();
+        op.path = path;
+        return op;
+    }
+
+    static FileChange.DeleteFile deleteFile(String path) {
+        FileChange.DeleteFile op = new FileChange.DeleteFile();
+        op.path = path;
+        return op;
+    }
+
+    static FileChange.MoveFile move(String from, String to) {
+        FileChange.MoveFile op = new FileChange.MoveFile();
+        op.from = from;
+        op.to = to;
+        return op;
+    }
+
+    /**
+     * 一段文件变动历史，所有版本共用同一张路径表
+     */
+    static class History {
+        PathTable paths = new PathTable();
+
+        /**
+         * 原始的文件变动，给原来的合并方法使用
+         */
+        List<List<FileChange>> raw = new ArrayList<>();
+
+        List<TempVersionMeta> metas = new ArrayList<>();
+
+        History version(FileChange... changes) {
+            ChangeList list = new ChangeList(paths);
+
+            for (FileChange change : changes)
+                list.add(change);
+
+            int v = metas.size();
+
+            metas.add(new TempVersionMeta("f" + v, new VersionMeta("v" + v, "", list)));
+            raw.add(Arrays.asList(changes));
+
+            return this;
+        }
+
+        /**
+         * 通过 Work.collectChanges() 按版本顺序合并
+         */
+        Result run() {
+            Result result = new Result();
+
+            Work.collectChanges(metas, tempDir, 1, result.createFolders, result.updateFiles, result.deleteFolders, result.deleteFiles, result.moveFiles);
+
+            return result;
+        }
+
+        String changeSet() {
+            try {
+                return run().toString();
+            } catch (RuntimeException e) {
+                return e.getMessage();
+            }
+        }
+
+        /**
+         * 使用多个线程合并，每个组单独一个任务，尽量多地拆分和归并
+         */
+        String parallel(int threads) {
+            Result result = new Result();
+
+            try {
+                ParallelChangeMerger merger = new ParallelChangeMerger(metas, tempDir, threads);
+                merger.leafRows = 1;
+                merger.collect(result.createFolders, result.updateFiles, result.deleteFolders, result.deleteFiles, result.moveFiles);
+            } catch (RuntimeException e) {
+                return e.getMessage();
+            }
+
+            return result.toString();
+        }
+
+        /**
+         * 原来直接在几个 ArrayList 上合并的实现
+         */
+        String listMerge() {
+            Result result = new Result();
+            ArrayList<String> createFolders = result.createFolders;
+            ArrayList<TempUpdateFile> updateFiles = result.updateFiles;
+            ArrayList<String> deleteFolders = result.deleteFolders;
+            ArrayList<String> deleteFiles = result.deleteFiles;
+            ArrayList<TempMoveFile> moveFiles = result.moveFiles;
+
+            try {
+                for (int v = 0; v < metas.size(); v++) {
+                    TempVersionMeta meta = metas.get(v);
+
+                    for (FileChange change : raw.get(v)) {
+                        if (change instanceof FileChange.CreateFolder) {
+                            FileChange.CreateFolder op = (FileChange.CreateFolder) change;
+
+                            RuntimeAssert.isTrue(!createFolders.contains(op.path));
+
+                            if (deleteFolders.stream().anyMatch(e -> e.equals(op.path))) {
+                                deleteFolders.remove(op.path);
+                            } else {
+                                createFolders.add(op.path);
+                            }
+                        }
+
+                        if (change instanceof FileChange.UpdateFile) {
+                            FileChange.UpdateFile op = (FileChange.UpdateFile) change;
+
+                            updateFiles.removeIf(e -> e.path.equals(op.path));
+                            deleteFiles.remove(op.path);
+                            updateFiles.add(new TempUpdateFile(meta.filename, meta.metadata.label, op.path, op.hash, op.len, op.modified, op.offset, tempDir, op.path));
+                        }
+
+                        if (change instanceof FileChange.DeleteFolder) {
+                            FileChange.DeleteFolder op = (FileChange.DeleteFolder) change;
+
+                            if (createFolders.contains(op.path)) {
+                                createFolders.remove(op.path);
+                            } else {
+                                deleteFolders.add(op.path);
+                            }
+                        }
+
+                        if (change instanceof FileChange.DeleteFile) {
+                            FileChange.DeleteFile op = (FileChange.DeleteFile) change;
+
+                            if (updateFiles.stream().anyMatch(e -> e.path.equals(op.path))) {
+                                updateFiles.removeIf(e -> e.path.equals(op.path));
+                            }
+
+                            deleteFiles.add(op.path);
+                        }
+
+                        if (change instanceof FileChange.MoveFile) {
+                            FileChange.MoveFile op = (FileChange.MoveFile) change;
+
+                            Optional<TempUpdateFile> find = updateFiles.stream()
+                                    .filter(e -> e.path.equals(op.from))
+                                    .findFirst();
+
+                            if (find.isPresent()) {
+                                RuntimeAssert.isTrue(!moveFiles.stream().anyMatch(e -> e.to.equals(op.to)));
+
+                                find.get().path = op.to;
+                            } else {
+                                RuntimeAssert.isTrue(!moveFiles.stream().anyMatch(e -> e.from.equals(op.from) || e.to.equals(op.to)));
+
+                                moveFiles.add(new TempMoveFile(op.from, op.to));
+                            }
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                return e.getMessage();
+            }
+
+            return result.toString();
+        }
+    }
+
+    /**
+     * 合并结果，toString() 包含所有需要比较的内容
+     */
+    static class Result {
+        ArrayList<String> createFolders = new ArrayList<>();
+        ArrayList<TempUpdateFile> updateFiles = new ArrayList<>();
+        ArrayList<String> deleteFolders = new ArrayList<>();
+        ArrayList<String> deleteFiles = new ArrayList<>();
+        ArrayList<TempMoveFile> moveFiles = new ArrayList<>();
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append("create folders: ").append(createFolders).append('\n');
+            sb.append("delete folders: ").append(deleteFolders).append('\n');
+            sb.append("delete files: ").append(deleteFiles).append('\n');
+
+            for (TempUpdateFile f : updateFiles) {
+                sb.append(String.format("update: %s %s %s %s %d %d %d %s%n",
+                        f.path, f.containerName, f.label, f.hash, f.length, f.modified, f.offset, f.getTempPath()));
+            }
+
+            for (TempMoveFile f : moveFiles)
+                sb.append(String.format("move: %s -> %s%n", f.from, f.to));
+
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.TempMoveFile;
+import com.github.balloonupdate.mcpatch.client.data.TempUpdateFile;
+import com.github.balloonupdate.mcpatch.client.utils.PathUtility;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 检查删除计划只会去掉确实不存在的路径，以及不会在有东西写入的目录上跳过检查
+ */
+public class DeletePlannerTest {
+    @TempDir
+    Path base;
+
+    ArrayList<String> createFolders = new ArrayList<>();
+    ArrayList<TempUpdateFile> updateFiles = new ArrayList<>();
+    ArrayList<String> deleteFolders = new ArrayList<>();
+    ArrayList<String> deleteFiles = new ArrayList<>();
+    ArrayList<TempMoveFile> moveFiles = new ArrayList<>();
+
+    /**
+     * 已经不存在的大目录，里面的文件和子目录以及从里面移出的文件都不需要再一个个检查
+     */
+    @Test
+    public void prunesMissingSubtree() {
+        addRemovedFolder();
+        moveFiles.add(new TempMoveFile("mods/old/d0/f0", "mods/new.jar"));
+
+        DeletePlanner planner = plan();
+
+        assertTrue(deleteFolders.isEmpty());
+        assertTrue(deleteFiles.isEmpty());
+        assertTrue(moveFiles.isEmpty());
+
+        // 只检查了 mods/old 本身，跳过了里面的子目录和文件以及两个移动文件
+        assertEquals(10 + 10 * 20 + 2, planner.getSkipped());
+    }
+
+    /**
+     * 要创建的目录在被删除的目录里时不能跳过，路径的大小写不同也一样
+     */
+    @Test
+    public void keepsSubtreeWithCreateFolder() {
+        addRemovedFolder();
+        createFolders.add("MODS/Old/D1/new");
+
+        assertOnlyD1Kept();
+    }
+
+    /**
+     * 要下载的文件在被删除的目录里时不能跳过
+     */
+    @Test
+    public void keepsSubtreeWithUpdateFile() {
+        addRemovedFolder();
+        updateFiles.add(update("mods/old/d1/new.jar"));
+
+        assertOnlyD1Kept();
+    }
+
+    /**
+     * 移动文件的 to 在被删除的目录里时不能跳过
+     */
+    @Test
+    public void keepsSubtreeWithMoveTarget() {
+        addRemovedFolder();
+        moveFiles.add(new TempMoveFile("config/a.txt", "mods/OLD/d1/a.txt"));
+
+        assertOnlyD1Kept();
+    }
+
+    /**
+     * 会被写入的路径包含 .. 时没法确定写到了哪里，不跳过任何子树
+     */
+    @Test
+    public void keepsSubtreeWithDotDotWrite() {
+        addRemovedFolder();
+        updateFiles.add(update("config/../somewhere.jar"));
+
+        DeletePlanner planner = plan();
+
+        assertTrue(deleteFolders.isEmpty());
+        assertTrue(deleteFiles.isEmpty());
+        assertEquals(1, moveFiles.size());
+        assertEquals(0, planner.getSkipped());
+    }
+
+    /**
+     * 要删除的路径包含 .. 时不放进路径树，也不会因为所在的子树被跳过而去掉，而是和 Files.exists() 一样逐个检查
+     */
+    @Test
+    public void checksDotDotPathsSeparately() throws IOException {
+        Files.createDirectories(base.resolve("d"));
+        Files.createFile(base.resolve("b"));
+
+        deleteFolders.add("a");
+        deleteFiles.addAll(Arrays.asList("d/../b", "d/../c", "a/../b"));
+
+        DeletePlanner planner = plan();
+
+        assertTrue(deleteFolders.isEmpty());
+        assertEquals(Collections.singletonList("d/../b"), deleteFiles);
+        assertEquals(0, planner.getSkipped());
+    }
+
+    /**
+     * 写法不同的路径会落在路径树的同一个节点上，但是分别检查
+     */
+    @Test
+    public void checksEverySpellingOfSamePath() throws IOException {
+        Files.createDirectories(base.resolve("a"));
+        Files.createFile(base.resolve("a/b"));
+        Files.createFile(base.resolve("f"));
+
+        deleteFiles.addAll(Arrays.asList("a//b", "a/b", "a/./b", "f", "f/.", "g//h", "g/h"));
+        deleteFolders.add("g");
+
+        plan();
+
+        assertEquals(Arrays.asList("a//b", "a/b", "a/./b", "f"), deleteFiles);
+        assertTrue(deleteFolders.isEmpty());
+    }
+
+    /**
+     * 随机生成磁盘上的文件和更新记录，结果要和逐个检查每个路径的结果一样，去掉的移动文件的 from 一定不存在
+     */
+    @Test
+    public void matchesCheckingEveryPath() throws IOException {
+        Random random = new Random(5);
+
+        for (int iter = 0; iter < 2000; iter++) {
+            try (Stream<Path> children = Files.list(base)) {
+                for (Path child : (Iterable<Path>) children::iterator)
+                    PathUtility.delete(child);
+            }
+
+            int fileCount = random.nextInt(8);
+
+            for (int k = 0; k < fileCount; k++) {
+                Path path = base.resolve(randomPath(random));
+
+                try {
+                    if (random.nextBoolean()) {
+                        Files.createDirectories(path);
+                    } else {
+                        Files.createDirectories(path.getParent());
+                        Files.createFile(path);
+                    }
+                } catch (IOException e) {
+                    // 上级目录是个文件，或者已经存在
+                }
+            }
+
+            createFolders.clear();
+            updateFiles.clear();
+            deleteFolders.clear();
+            deleteFiles.clear();
+            moveFiles.clear();
+
+            for (int k = random.nextInt(4); k > 0; k--)
+                createFolders.add(randomPath(random));
+
+            for (int k = random.nextInt(4); k > 0; k--)
+                updateFiles.add(update(randomPath(random)));
+
+            for (int k = random.nextInt(10); k > 0; k--)
+                deleteFiles.add(randomPath(random) + pick(random, "", "", "", "", "/./", "/../b", "//"));
+
+            for (int k = random.nextInt(10); k > 0; k--)
+                deleteFolders.add(randomPath(random) + pick(random, "", "", "", "/.", "/../a"));
+
+            for (int k = random.nextInt(4); k > 0; k--)
+                moveFiles.add(new TempMoveFile(randomPath(random), randomPath(random)));
+
+            ArrayList<String> expectedFiles = new ArrayList<>(deleteFiles);
+            ArrayList<String> expectedFolders = new ArrayList<>(deleteFolders);
+            ArrayList<TempMoveFile> moves = new ArrayList<>(moveFiles);
+
+            expectedFiles.removeIf(f -> !Files.exists(base.resolve(f)));
+            expectedFolders.removeIf(f -> !Files.exists(base.resolve(f)));
+
+            plan();
+
+            assertEquals(expectedFiles, deleteFiles);
+            assertEquals(expectedFolders, deleteFolders);
+
+            for (TempMoveFile move : moves) {
+                if (!moveFiles.contains(move))
+                    assertFalse(Files.exists(base.resolve(move.from)), move.from);
+            }
+        }
+    }
+
+    DeletePlanner plan() {
+        DeletePlanner planner = new DeletePlanner(base);
+        planner.plan(createFolders, updateFiles, deleteFolders, deleteFiles, moveFiles);
+
+        return planner;
+    }
+
+    /**
+     * 要删除一个已经不存在的目录 mods/old，以及里面的 10 个子目录和每个子目录里的 20 个文件
+     */
+    void addRemovedFolder() {
+        deleteFolders.add("mods/old");
+
+        for (int i = 0; i < 10; i++) {
+            deleteFolders.add("mods/old/d" + i);
+
+            for (int j = 0; j < 20; j++)
+                deleteFiles.add("mods/old/d" + i + "/f" + j);
+        }
+
+        moveFiles.add(new TempMoveFile("mods/old/d1/f1", "mods/kept.jar"));
+    }
+
+    /**
+     * 只有写入的 mods/old/d1 这棵子树没有被跳过：所有路径都检查过了（都不存在），from 在 d1 里的移动文件也保留着。
+     * 其它 9 个子目录里的文件仍然会被跳过
+     */
+    void assertOnlyD1Kept() {
+        int moves = moveFiles.size();
+
+        DeletePlanner planner = plan();
+
+        assertTrue(deleteFolders.isEmpty());
+        assertTrue(deleteFiles.isEmpty());
+        assertEquals(moves, moveFiles.size());
+        assertEquals(9 * 20, planner.getSkipped());
+    }
+
+    TempUpdateFile update(String path) {
+        return new TempUpdateFile("container", "1.0", path, "hash", 1, 1, 0, base, "temp");
+    }
+
+    static String randomPath(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int depth = 1 + random.nextInt(3);
+
+        for (int i = 0; i < depth; i++) {
+            if (i > 0)
+                sb.append('/');
+
+            sb.append(pick(random, "a", "b", "A", "c"));
+        }
+
+        return sb.toString();
+    }
+
+    static String pick(Random random, String... options) {
+        return options[random.nextInt(options.length)];
+    }
+}
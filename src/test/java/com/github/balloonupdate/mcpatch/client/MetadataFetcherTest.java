@@ -0,0 +1,172 @@
+package com.github.balloonupdate.mcpatch.client;
+
+import com.github.balloonupdate.mcpatch.client.data.PathTable;
+import com.github.balloonupdate.mcpatch.client.data.VersionMeta;
+import com.github.balloonupdate.mcpatch.client.data.VersionMetaParser;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 检查合并下载时按字节位置把数据分给每个版本的解析器，以及解析时跳过重复版本的判断
+ */
+public class MetadataFetcherTest {
+    /**
+     * 几段元数据之间夹着随机的空隙，按随机大小的块写入 Dispatcher，每个解析器只能拿到自己那一段
+     */
+    @Test
+    public void dispatcherSlicesByOffset() throws Exception {
+        Random random = new Random(3);
+
+        for (int iter = 0; iter < 500; iter++) {
+            int count = 1 + random.nextInt(5);
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            long[] starts = new long[count];
+            long[] lengths = new long[count];
+            VersionMetaParser[] parsers = new VersionMetaParser[count];
+            PathTable paths = new PathTable();
+
+            for (int k = 0; k < count; k++) {
+                // 第一段前面没有空隙，和 fetch() 里请求范围从第一个版本开始一致
+                if (k > 0) {
+                    byte[] gap = new byte[random.nextInt(40)];
+                    random.nextBytes(gap);
+                    data.write(gap);
+                }
+
+                byte[] meta = meta("v" + k, "file" + k).getBytes(StandardCharsets.UTF_8);
+
+                starts[k] = data.size();
+                lengths[k] = meta.length;
+                parsers[k] = new VersionMetaParser(label -> true, paths);
+
+                data.write(meta);
+            }
+
+            byte[] bytes = data.toByteArray();
+            MetadataFetcher.Dispatcher dispatcher = new MetadataFetcher.Dispatcher(parsers, starts, lengths, bytes.length, "test");
+
+            for (int i = 0; i < bytes.length; ) {
+                int n = Math.min(bytes.length - i, 1 + random.nextInt(random.nextBoolean() ? 4 : 200));
+
+                if (n == 1)
+                    dispatcher.write(bytes[i]);
+                else
+                    dispatcher.write(bytes, i, n);
+
+                i += n;
+            }
+
+            assertEquals(bytes.length, dispatcher.position);
+
+            for (int k = 0; k < count; k++) {
+                List<VersionMeta> metas = parsers[k].finish();
+
+                assertEquals(1, metas.size());
+                assertEquals("v" + k, metas.get(0).label);
+                assertEquals("file" + k, metas.get(0).changes.path(0));
+            }
+        }
+    }
+
+    /**
+     * 服务器返回的数据比请求的范围更长时抛出异常
+     */
+    @Test
+    public void dispatcherRejectsOverlongResponse() throws Exception {
+        byte[] meta = meta("v", "file").getBytes(StandardCharsets.UTF_8);
+
+        VersionMetaParser[] parsers = { new VersionMetaParser(label -> true, new PathTable()) };
+        MetadataFetcher.Dispatcher dispatcher = new MetadataFetcher.Dispatcher(parsers, new long[] { 0 }, new long[] { meta.length }, meta.length, "test");
+
+        dispatcher.write(meta, 0, meta.length);
+
+        assertThrows(IOException.class, () -> dispatcher.write('x'));
+    }
+
+    /**
+     * 只有按版本顺序确定前面已经出现过的 label 才跳过
+     */
+    @Test
+    public void claimSkipsOnlyEarlierDuplicates() {
+        try (MetadataFetcher fetcher = new MetadataFetcher(null, Collections.emptyList(), 1, 0)) {
+            // 第一次出现
+            assertTrue(fetcher.claim("1.0", 3));
+
+            // 同一个版本里再次出现，或者更靠后的版本里出现
+            assertFalse(fetcher.claim("1.0", 3));
+            assertFalse(fetcher.claim("1.0", 5));
+
+            // 更靠前的版本后下载完，这时还不能确定是重复的，需要保留，之后以它为准
+            assertTrue(fetcher.claim("1.0", 1));
+            assertFalse(fetcher.claim("1.0", 2));
+            assertTrue(fetcher.claim("1.0", 0));
+
+            // 不同的 label 互不影响
+            assertTrue(fetcher.claim("1.1", 4));
+        }
+    }
+
+    /**
+     * 多个线程同时解析时，每个 label 在第一个版本里只会被接受一次
+     */
+    @Test
+    public void claimIsThreadSafe() throws Exception {
+        try (MetadataFetcher fetcher = new MetadataFetcher(null, Collections.emptyList(), 1, 0)) {
+            int threadCount = 8;
+            int labelCount = 2000;
+            int[] accepted = new int[threadCount];
+            List<Thread> threads = new ArrayList<>();
+
+            for (int t = 0; t < threadCount; t++) {
+                int thread = t;
+
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < labelCount; i++)
+                        if (fetcher.claim("v" + i, 0))
+                            accepted[thread] += 1;
+                }));
+            }
+
+            for (Thread thread : threads)
+                thread.start();
+
+            for (Thread thread : threads)
+                thread.join();
+
+            int total = 0;
+
+            for (int n : accepted)
+                total += n;
+
+            assertEquals(labelCount, total);
+        }
+    }
+
+    static String meta(String label, String path) {
+        JSONObject change = new JSONObject();
+        change.put("operation", "delete-file");
+        change.put("path", path);
+
+        JSONObject meta = new JSONObject();
+        meta.put("label", label);
+        meta.put("logs", "");
+        meta.put("changes", new JSONArray().put(change));
+
+        return new JSONArray().put(meta).toString();
+    }
+}
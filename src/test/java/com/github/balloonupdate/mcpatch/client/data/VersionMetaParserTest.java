@@ -0,0 +1,221 @@
+package com.github.balloonupdate.mcpatch.client.data;
+
+import com.github.balloonupdate.mcpatch.client.exceptions.McpatchBusinessException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 检查流式解析元数据的结果和一次性解析整个 json 的结果是否一致
+ */
+public class VersionMetaParserTest {
+    /**
+     * 随机字符串的组成部分，包含需要转义的字符和多字节的字符
+     */
+    static final String[] pieces = { "a", "模组", "\"q\"", "\\", "/", "\n", "\t", "😀", "\u0001", "é" };
+
+    /**
+     * 随机生成元数据，按随机大小的块写入解析器，结果要和 new VersionMeta(JSONObject) 逐个解析并按 label 去重的结果一样
+     */
+    @Test
+    public void matchesJsonObjectUnderRandomChunking() throws Exception {
+        Random random = new Random(7);
+
+        for (int iter = 0; iter < 3000; iter++) {
+            JSONArray metas = randomMetas(random);
+
+            String text = metas.toString();
+
+            // 一半的情况下加上多余的空白
+            if (random.nextBoolean())
+                text = text.replace(",", " ,\n ").replace(":", " : ");
+
+            List<String> expected = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+
+            for (int i = 0; i < metas.length(); i++) {
+                VersionMeta meta = new VersionMeta(metas.getJSONObject(i));
+
+                if (seen.add(meta.label))
+                    expected.add(dump(meta));
+            }
+
+            VersionMetaParser parser = new VersionMetaParser(new HashSet<String>()::add, new PathTable());
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+            for (int i = 0; i < bytes.length; ) {
+                int n = Math.min(bytes.length - i, 1 + random.nextInt(random.nextBoolean() ? 3 : 50));
+                parser.write(bytes, i, n);
+                i += n;
+            }
+
+            List<String> actual = new ArrayList<>();
+
+            for (VersionMeta meta : parser.finish())
+                actual.add(dump(meta));
+
+            assertEquals(expected, actual, text);
+            assertEquals(metas.length() - expected.size(), parser.getSkipped(), text);
+        }
+    }
+
+    /**
+     * LabelFilter 不接受的版本直接跳过，即使 label 出现在 changes 后面也一样
+     */
+    @Test
+    public void skipsRejectedVersions() throws Exception {
+        String text = "[" +
+                "{\"changes\":[{\"operation\":\"delete-file\",\"path\":\"a\"}],\"logs\":\"l\",\"label\":\"1.0\"}," +
+                "{\"label\":\"1.1\",\"logs\":\"l\",\"changes\":[{\"operation\":\"delete-file\",\"path\":\"b\"}]}," +
+                "{\"changes\":[{\"operation\":\"delete-file\",\"path\":\"c\"}],\"label\":\"1.0\",\"logs\":\"l\"}," +
+                "{\"label\":\"1.2\",\"logs\":\"l\",\"changes\":[{\"operation\":\"delete-file\",\"path\":\"d\"}]}" +
+                "]";
+
+        Set<String> accepted = new HashSet<>();
+        VersionMetaParser parser = new VersionMetaParser(label -> !label.equals("1.1") && accepted.add(label), new PathTable());
+        parser.write(text.getBytes(StandardCharsets.UTF_8));
+
+        List<VersionMeta> metas = parser.finish();
+
+        assertEquals(2, metas.size());
+        assertEquals("1.0", metas.get(0).label);
+        assertEquals("a", metas.get(0).changes.path(0));
+        assertEquals("1.2", metas.get(1).label);
+        assertEquals("d", metas.get(1).changes.path(0));
+        assertEquals(2, parser.getSkipped());
+    }
+
+    /**
+     * 不完整或者格式不正确的元数据在 finish() 时抛出异常
+     */
+    @Test
+    public void rejectsTruncatedOrMalformedInput() {
+        List<String> texts = Arrays.asList(
+                // 不完整
+                "",
+                "[",
+                "[{\"label\":\"a\",\"logs\":\"\",\"changes\":[]}",
+                "[{\"label\":\"a\",\"logs\":\"\",\"changes\":[{\"operation\":\"delete-file\",\"path\":\"x",
+                // 格式不正确
+                "{}",
+                "[1]",
+                "[}",
+                "[,{}]",
+                "[{\"a\"}]",
+                "[{\"a\" \"b\"}]",
+                "[{\"a\":1 2}]",
+                "[{\"a\":\"\\x\"}]",
+                "[{\"label\":\"a\" \"logs\"}]",
+                // 缺少字段或者类型不对
+                "[{\"label\":\"a\"}]",
+                "[{\"label\":1,\"logs\":\"\",\"changes\":[]}]",
+                "[{\"label\":\"a\",\"logs\":\"\",\"changes\":[{\"operation\":\"delete-file\"}]}]"
+        );
+
+        for (String text : texts) {
+            assertThrows(McpatchBusinessException.class, () -> {
+                VersionMetaParser parser = new VersionMetaParser(label -> true, new PathTable());
+                parser.write(text.getBytes(StandardCharsets.UTF_8));
+                parser.finish();
+            }, text);
+        }
+    }
+
+    static JSONArray randomMetas(Random random) {
+        JSONArray metas = new JSONArray();
+        int count = random.nextInt(5);
+
+        for (int m = 0; m < count; m++) {
+            JSONArray changes = new JSONArray();
+            int changeCount = random.nextInt(6);
+
+            for (int c = 0; c < changeCount; c++) {
+                JSONObject change = new JSONObject();
+                int kind = random.nextInt(6);
+
+                if (kind == 0) {
+                    change.put("operation", "update-file");
+                    change.put("path", randomString(random));
+                    change.put("hash", randomString(random));
+                    change.put("len", random.nextInt(1 << 30) * 7L);
+                    change.put("modified", -5L);
+                    change.put("offset", random.nextLong() >>> 1);
+                } else if (kind == 1) {
+                    change.put("operation", "move-file");
+                    change.put("from", randomString(random));
+                    change.put("to", randomString(random));
+                } else if (kind == 2) {
+                    // 带有需要整体跳过的嵌套字段
+                    change.put("operation", "delete-file");
+                    change.put("path", randomString(random));
+                    change.put("extra", new JSONObject().put("x", new JSONArray().put(1).put("}]")));
+                } else if (kind == 3) {
+                    change.put("operation", "unknown-op");
+                    change.put("path", randomString(random));
+                } else {
+                    change.put("operation", kind == 4 ? "create-directory" : "delete-directory");
+                    change.put("path", randomString(random));
+                }
+
+                changes.put(change);
+            }
+
+            JSONObject meta = new JSONObject();
+            meta.put("label", "v" + random.nextInt(4) + randomString(random));
+            meta.put("logs", randomString(random));
+            meta.put("changes", changes);
+
+            // 不认识的字段里也可能出现 changes
+            if (random.nextBoolean())
+                meta.put("other", new JSONArray().put(new JSONObject().put("changes", "x")));
+
+            metas.put(meta);
+        }
+
+        return metas;
+    }
+
+    static String randomString(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int n = random.nextInt(6);
+
+        for (int i = 0; i < n; i++)
+            sb.append(pieces[random.nextInt(pieces.length)]);
+
+        return sb.toString();
+    }
+
+    /**
+     * 把一个版本的元数据转换成字符串，方便比较
+     */
+    static String dump(VersionMeta meta) {
+        StringBuilder sb = new StringBuilder(meta.label + "|" + meta.logs);
+        ChangeList changes = meta.changes;
+
+        for (int i = 0; i < changes.size(); i++) {
+            sb.append("\n").append(changes.kind(i)).append(" ").append(changes.path(i));
+
+            if (changes.kind(i) == ChangeList.MOVE_FILE)
+                sb.append(" ").append(changes.target(i));
+
+            if (changes.kind(i) == ChangeList.UPDATE_FILE)
+                sb.append(" ").append(changes.hash(i))
+                        .append(" ").append(changes.length(i))
+                        .append(" ").append(changes.modified(i))
+                        .append(" ").append(changes.offset(i));
+        }
+
+        return sb.toString();
+    }
+}
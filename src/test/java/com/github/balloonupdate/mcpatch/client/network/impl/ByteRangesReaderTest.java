@@ -0,0 +1,196 @@
+package com.github.balloonupdate.mcpatch.client.network.impl;
+
+import com.github.balloonupdate.mcpatch.client.data.Range;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 检查多范围请求的响应能否正确地拼接成请求的每一段数据
+ */
+public class ByteRangesReaderTest {
+    /**
+     * 文件内容
+     */
+    static final byte[] content = new byte[4096];
+
+    static {
+        new Random(5).nextBytes(content);
+    }
+
+    static final String boundary = "THIS_STRING_SEPARATES";
+
+    /**
+     * 请求的范围
+     */
+    static final List<Range> ranges = Arrays.asList(new Range(10, 100), new Range(200, 260), new Range(1000, 3000));
+
+    /**
+     * 用 CRLF 换行的标准响应
+     */
+    @Test
+    public void crlfBody() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteRangesReader reader = read(multipart("\r\n", "", ranges), output);
+
+        assertTrue(reader.isComplete());
+        assertArrayEquals(expected(ranges), output.toByteArray());
+        assertEquals(output.size(), reader.getWritten());
+    }
+
+    /**
+     * 只用 LF 换行，并且开头带有说明文字
+     */
+    @Test
+    public void lfBodyWithPreamble() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteRangesReader reader = read(multipart("\n", "This is a preamble\n--not the boundary\n", ranges), output);
+
+        assertTrue(reader.isComplete());
+        assertArrayEquals(expected(ranges), output.toByteArray());
+    }
+
+    /**
+     * 服务器把离得很近的两段合并成一段返回，多出来的部分丢弃
+     */
+    @Test
+    public void coalescedParts() throws IOException {
+        List<Range> parts = Arrays.asList(new Range(0, 300), new Range(1000, 3000));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteRangesReader reader = read(multipart("\r\n", "", parts), output);
+
+        assertTrue(reader.isComplete());
+        assertArrayEquals(expected(ranges), output.toByteArray());
+    }
+
+    /**
+     * 服务器忽略了多个范围，只返回一整段 206 响应
+     */
+    @Test
+    public void singlePartBody() throws IOException {
+        Range whole = new Range(0, content.length);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteRangesReader reader = new ByteRangesReader(ranges, output, (batch, downloaded, total) -> {});
+        reader.readPart(new ByteArrayInputStream(content), whole, new byte[100]);
+
+        assertTrue(reader.isComplete());
+        assertArrayEquals(expected(ranges), output.toByteArray());
+    }
+
+    /**
+     * 响应里缺了一段，之后的数据不再写入
+     */
+    @Test
+    public void missingPart() throws IOException {
+        List<Range> parts = Arrays.asList(ranges.get(0), ranges.get(2));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteRangesReader reader = read(multipart("\r\n", "", parts), output);
+
+        assertFalse(reader.isComplete());
+        assertArrayEquals(expected(ranges.subList(0, 1)), output.toByteArray());
+    }
+
+    /**
+     * 响应里每一段的顺序不对
+     */
+    @Test
+    public void reorderedParts() throws IOException {
+        List<Range> parts = Arrays.asList(ranges.get(1), ranges.get(0), ranges.get(2));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteRangesReader reader = read(multipart("\r\n", "", parts), output);
+
+        assertFalse(reader.isComplete());
+        assertEquals(0, output.size());
+    }
+
+    @Test
+    public void parseBoundary() {
+        assertEquals("abc", ByteRangesReader.parseBoundary("multipart/byteranges; boundary=abc"));
+        assertEquals("a b", ByteRangesReader.parseBoundary("Multipart/Byteranges;charset=x; BOUNDARY=\"a b\""));
+        assertNull(ByteRangesReader.parseBoundary(null));
+        assertNull(ByteRangesReader.parseBoundary("application/octet-stream"));
+        assertNull(ByteRangesReader.parseBoundary("multipart/byteranges"));
+        assertNull(ByteRangesReader.parseBoundary("multipart/byteranges; boundary="));
+    }
+
+    @Test
+    public void parseContentRange() {
+        Range range = ByteRangesReader.parseContentRange(" bytes 100-199/1000");
+        assertEquals(100, range.start);
+        assertEquals(200, range.end);
+
+        range = ByteRangesReader.parseContentRange("bytes 0-0/*");
+        assertEquals(0, range.start);
+        assertEquals(1, range.end);
+
+        assertNull(ByteRangesReader.parseContentRange(null));
+        assertNull(ByteRangesReader.parseContentRange("items 0-1/2"));
+        assertNull(ByteRangesReader.parseContentRange("bytes */1000"));
+        assertNull(ByteRangesReader.parseContentRange("bytes 5-4/1000"));
+        assertNull(ByteRangesReader.parseContentRange("bytes a-b/1000"));
+        assertNull(ByteRangesReader.parseContentRange("bytes 0-1"));
+    }
+
+    static ByteRangesReader read(byte[] body, ByteArrayOutputStream output) throws IOException {
+        ByteRangesReader reader = new ByteRangesReader(ranges, output, (batch, downloaded, total) -> {});
+        reader.readMultipart(new BufferedInputStream(new ByteArrayInputStream(body)), boundary, new byte[64]);
+
+        return reader;
+    }
+
+    /**
+     * 生成 multipart/byteranges 格式的响应体
+     *
+     * @param newline 换行符
+     * @param preamble 第一个分隔符前面的说明文字
+     * @param parts 响应里每一段的范围
+     */
+    static byte[] multipart(String newline, String preamble, List<Range> parts) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(preamble.getBytes(StandardCharsets.ISO_8859_1));
+
+        for (Range part : parts) {
+            String header = "--" + boundary + newline
+                    + "Content-Type: application/octet-stream" + newline
+                    + String.format("Content-Range: bytes %d-%d/%d", part.start, part.end - 1, content.length) + newline
+                    + newline;
+
+            body.write(header.getBytes(StandardCharsets.ISO_8859_1));
+            body.write(content, (int) part.start, (int) part.len());
+            body.write(newline.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        body.write(("--" + boundary + "--" + newline).getBytes(StandardCharsets.ISO_8859_1));
+
+        return body.toByteArray();
+    }
+
+    /**
+     * 请求的每一段数据首尾相连的结果
+     */
+    static byte[] expected(List<Range> ranges) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (Range range : ranges)
+            out.write(content, (int) range.start, (int) range.len());
+
+        return out.toByteArray();
+    }
+}
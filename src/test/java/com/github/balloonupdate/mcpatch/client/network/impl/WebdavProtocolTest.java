@@ -0,0 +1,237 @@
+package com.github.balloonupdate.mcpatch.client.network.impl;
+
+import com.github.balloonupdate.mcpatch.client.config.AppConfig;
+import com.github.balloonupdate.mcpatch.client.data.Range;
+import com.github.balloonupdate.mcpatch.client.exceptions.McpatchBusinessException;
+import com.github.balloonupdate.mcpatch.client.utils.ChannelOutputStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 在本地启动一个支持 Range 请求的 http 服务器，检查 webdav 协议的整个文件下载、范围下载、多个连接同时分段下载以及下载中断的情况
+ */
+public class WebdavProtocolTest {
+    /**
+     * 服务器上的文件内容
+     */
+    static final byte[] content = new byte[3 * 1024 * 1024 + 123];
+
+    static {
+        new Random(1).nextBytes(content);
+    }
+
+    HttpServer server;
+
+    /**
+     * 正在处理的请求数
+     */
+    AtomicInteger active = new AtomicInteger();
+
+    /**
+     * 同时处理的请求数的最大值
+     */
+    AtomicInteger peak = new AtomicInteger();
+
+    @BeforeEach
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/root/file.bin", this::serve);
+        server.createContext("/root/broken.bin", this::serveBroken);
+        server.start();
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * 不指定范围时下载整个文件
+     */
+    @Test
+    public void downloadWhole() throws Exception {
+        try (WebdavProtocol webdav = open(new HashMap<>())) {
+            assertArrayEquals(content, download(webdav, "file.bin", Range.Empty()));
+        }
+    }
+
+    /**
+     * 只下载指定的范围
+     */
+    @Test
+    public void downloadRange() throws Exception {
+        try (WebdavProtocol webdav = open(new HashMap<>())) {
+            Range range = new Range(1000, 2 * 1024 * 1024 + 7);
+
+            assertArrayEquals(Arrays.copyOfRange(content, 1000, 2 * 1024 * 1024 + 7), download(webdav, "file.bin", range));
+        }
+    }
+
+    /**
+     * 多个线程同时下载各自的一段，直接写到同一个文件里对应的位置上，和 Work.downloadSegmented() 的做法一样。
+     * 连接池需要足够大，所有段都能同时下载，不会排队等待连接
+     */
+    @Test
+    public void downloadSegmentsConcurrently(@TempDir Path dir) throws Exception {
+        Map<String, Object> options = new HashMap<>();
+        options.put("download-threads", 1);
+        options.put("download-threads-max", 2);
+        options.put("download-segments", 4);
+
+        int count = 8;
+        long segmentSize = (content.length + count - 1) / count;
+        Path file = dir.resolve("file.bin");
+
+        ExecutorService pool = Executors.newFixedThreadPool(count);
+
+        try (WebdavProtocol webdav = open(options);
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int i = 0; i < count; i++) {
+                long start = i * segmentSize;
+                long end = Math.min(start + segmentSize, content.length);
+
+                futures.add(pool.submit(() -> {
+                    webdav.downloadStream("file.bin", new Range(start, end), "segment",
+                            resumeFrom -> new ChannelOutputStream(channel, start + resumeFrom),
+                            (batch, downloaded, total) -> {}, null);
+
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertArrayEquals(content, Files.readAllBytes(file));
+        assertEquals(count, peak.get());
+    }
+
+    /**
+     * 连接中途断开时抛出异常，并且回退已经报告过的进度
+     */
+    @Test
+    public void brokenConnection() throws Exception {
+        try (WebdavProtocol webdav = open(new HashMap<>())) {
+            AtomicLong reported = new AtomicLong();
+            AtomicLong fallback = new AtomicLong(-1);
+
+            assertThrows(McpatchBusinessException.class, () -> webdav.downloadStream("broken.bin", Range.Empty(), "broken",
+                    resumeFrom -> new ByteArrayOutputStream(),
+                    (batch, downloaded, total) -> reported.addAndGet(batch),
+                    fallback::set));
+
+            assertTrue(fallback.get() >= reported.get());
+            assertTrue(fallback.get() < content.length);
+        }
+    }
+
+    WebdavProtocol open(Map<String, Object> options) throws McpatchBusinessException {
+        int port = server.getAddress().getPort();
+
+        return new WebdavProtocol(1, "webdav://user:pass:127.0.0.1:" + port + "/root", new AppConfig(options));
+    }
+
+    static byte[] download(WebdavProtocol webdav, String path, Range range) throws McpatchBusinessException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        webdav.downloadStream(path, range, path, resumeFrom -> output, (batch, downloaded, total) -> {}, null);
+
+        return output.toByteArray();
+    }
+
+    /**
+     * 返回文件内容，支持单个范围的 Range 请求
+     */
+    void serve(HttpExchange exchange) throws IOException {
+        int now = active.incrementAndGet();
+        peak.accumulateAndGet(now, Math::max);
+
+        try {
+            int start = 0;
+            int end = content.length;
+            int code = 200;
+
+            String header = exchange.getRequestHeaders().getFirst("Range");
+
+            if (header != null) {
+                Matcher m = Pattern.compile("^bytes=(\\d+)-(\\d+)$").matcher(header);
+
+                if (!m.find()) {
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+
+                start = Integer.parseInt(m.group(1));
+                end = Integer.parseInt(m.group(2)) + 1;
+                code = 206;
+
+                exchange.getResponseHeaders().add("Content-Range", String.format("bytes %d-%d/%d", start, end - 1, content.length));
+            }
+
+            // 稍微等一下，让同时发起的请求在服务器上重叠起来
+            Thread.sleep(200);
+
+            exchange.sendResponseHeaders(code, end - start);
+
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(content, start, end - start);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            active.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    /**
+     * 声明了完整的长度，但只发送一半的数据就断开连接
+     */
+    void serveBroken(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, content.length);
+
+        OutputStream body = exchange.getResponseBody();
+        body.write(content, 0, content.length / 2);
+        body.flush();
+
+        // 数据不够时关闭连接
+        exchange.close();
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.balloonupdate.mcpatch.client.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 查表法（slicing-by-8）实现的 crc 算法和原来逐位计算的实现在随机数据上的结果必须完全一样
+ */
+public class CrcTest {
+    /**
+     * 标准的校验数据 "123456789" 的 crc 值
+     */
+    @Test
+    public void checkValues() {
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+        Crc64_XZ crc64 = new Crc64_XZ();
+        Crc16_IBM_SDLC crc16 = new Crc16_IBM_SDLC();
+
+        crc64.update(data, 0, data.length);
+        crc16.update(data, 0, data.length);
+
+        assertEquals(0x995dc9bbdf1939faL, crc64.getValue());
+        assertEquals(0x906e, crc16.getValue());
+        assertEquals(0x995dc9bbdf1939faL, BitwiseCrc64.of(data, 0, data.length));
+        assertEquals(0x906e, BitwiseCrc16.of(data, 0, data.length));
+    }
+
+    /**
+     * 随机长度、随机起始位置的数据，分成随机的若干块喂进去
+     */
+    @Test
+    public void byteArrayMatchesBitwise() {
+        Random random = new Random(1);
+
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = randomBytes(random, random.nextInt(3000));
+            int offset = data.length == 0 ? 0 : random.nextInt(data.length);
+            int len = data.length - offset;
+
+            Crc64_XZ crc64 = new Crc64_XZ();
+            Crc16_IBM_SDLC crc16 = new Crc16_IBM_SDLC();
+
+            int x = offset;
+
+            while (x < offset + len) {
+                int n = Math.min(offset + len - x, random.nextInt(40));
+
+                crc64.update(data, x, n);
+                crc16.update(data, x, n);
+                x += n;
+            }
+
+            assertEquals(BitwiseCrc64.of(data, offset, len), crc64.getValue());
+            assertEquals(BitwiseCrc16.of(data, offset, len), crc16.getValue());
+        }
+    }
+
+    /**
+     * 堆内和堆外、大端和小端的 ByteBuffer，只读取 position 到 limit 之间的数据，并且不修改 position
+     */
+    @Test
+    public void byteBufferMatchesBitwise() {
+        Random random = new Random(2);
+
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = randomBytes(random, random.nextInt(3000));
+            int start = data.length == 0 ? 0 : random.nextInt(data.length);
+            int end = start + random.nextInt(data.length - start + 1);
+
+            ByteBuffer buffer = random.nextBoolean() ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+            buffer.put(data);
+            buffer.order(random.nextBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(end);
+            buffer.position(start);
+
+            Crc64_XZ crc64 = new Crc64_XZ();
+            Crc16_IBM_SDLC crc16 = new Crc16_IBM_SDLC();
+
+            crc64.update(buffer);
+            crc16.update(buffer);
+
+            assertEquals(start, buffer.position());
+            assertEquals(end, buffer.limit());
+            assertEquals(BitwiseCrc64.of(data, start, end - start), crc64.getValue());
+            assertEquals(BitwiseCrc16.of(data, start, end - start), crc16.getValue());
+        }
+    }
+
+    /**
+     * 两段数据分别计算再合并，和整段数据一起计算的结果一样，包括其中一段为空的情况
+     */
+    @Test
+    public void combineMatchesBitwise() {
+        Random random = new Random(3);
+
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = randomBytes(random, random.nextInt(5000));
+            int split = random.nextInt(data.length + 1);
+            int len2 = data.length - split;
+
+            long a64 = BitwiseCrc64.of(data, 0, split);
+            long b64 = BitwiseCrc64.of(data, split, len2);
+            int a16 = BitwiseCrc16.of(data, 0, split);
+            int b16 = BitwiseCrc16.of(data, split, len2);
+
+            assertEquals(BitwiseCrc64.of(data, 0, data.length), Crc64_XZ.combine(a64, b64, len2));
+            assertEquals(BitwiseCrc16.of(data, 0, data.length), Crc16_IBM_SDLC.combine(a16, b16, len2));
+        }
+    }
+
+    /**
+     * 第二段数据很长时，只需要长度就能合并，不需要真的准备这么多数据
+     */
+    @Test
+    public void combineLongZeroRuns() {
+        Random random = new Random(4);
+
+        for (int i = 0; i < 50; i++) {
+            byte[] head = randomBytes(random, 1 + random.nextInt(64));
+            int zeros = random.nextInt(1 << 20);
+            byte[] data = new byte[head.length + zeros];
+
+            System.arraycopy(head, 0, data, 0, head.length);
+
+            assertEquals(BitwiseCrc64.of(data, 0, data.length),
+                    Crc64_XZ.combine(BitwiseCrc64.of(head, 0, head.length), BitwiseCrc64.of(data, head.length, zeros), zeros));
+            assertEquals(BitwiseCrc16.of(data, 0, data.length),
+                    Crc16_IBM_SDLC.combine(BitwiseCrc16.of(head, 0, head.length), BitwiseCrc16.of(data, head.length, zeros), zeros));
+        }
+    }
+
+    static byte[] randomBytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 原来逐位计算的 CRC-64/XZ 实现
+     */
+    static class BitwiseCrc64 {
+        static long of(byte[] data, int offset, int len) {
+            long crc = 0xffffffffffffffffL;
+
+            for (int x = offset; x < offset + len; x++) {
+                crc ^= reflect(data[x] & 0xff, 8) << 56;
+
+                for (int i = 0; i < 8; i++)
+                    crc = (crc & 0x8000000000000000L) != 0 ? (crc << 1) ^ 0x42f0e1eba9ea3693L : crc << 1;
+            }
+
+            return reflect(crc, 64) ^ 0xffffffffffffffffL;
+        }
+
+        static long reflect(long value, int bits) {
+            long reflected = 0;
+
+            for (int i = 0; i < bits; i++) {
+                if ((value & (1L << i)) != 0)
+                    reflected |= 1L << (bits - 1 - i);
+            }
+
+            return reflected;
+        }
+    }
+
+    /**
+     * 原来逐位计算的 CRC-16/IBM-SDLC 实现
+     */
+    static class BitwiseCrc16 {
+        static int of(byte[] data, int offset, int len) {
+            int crc = 0xffff;
+
+            for (int x = offset; x < offset + len; x++) {
+                crc ^= reflect(data[x] & 0xff, 8) << 8;
+
+                for (int i = 0; i < 8; i++)
+                    crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+
+            return (reflect(crc, 16) ^ 0xffff) & 0xffff;
+        }
+
+        static int reflect(int value, int bits) {
+            int reflected = 0;
+
+            for (int i = 0; i < bits; i++) {
+                if ((value & (1 << i)) != 0)
+                    reflected |= 1 << (bits - 1 - i);
+            }
+
+            return reflected;
+        }
+    }
+}